@@ -14,6 +14,7 @@ import static java.lang.annotation.RetentionPolicy.SOURCE;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.LauncherActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -38,6 +39,7 @@ import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.launcher3.icons.BitmapInfo.BitmapInfoFlags;
 import com.android.launcher3.icons.BitmapInfo.Extender;
 import com.android.launcher3.util.FlagOp;
 
@@ -145,7 +147,7 @@ public class BaseIconFactory implements AutoCloseable {
     @SuppressWarnings("deprecation")
     public BitmapInfo createIconBitmap(Intent.ShortcutIconResource iconRes) {
         try {
-            Resources resources = mPm.getResourcesForApplication(iconRes.packageName);
+            Resources resources = PackageResourcesCache.getResources(mPm, iconRes.packageName);
             if (resources != null) {
                 final int id = resources.getIdentifier(iconRes.resourceName, null, null);
                 // do not stamp old legacy shortcuts as the app may have already forgotten about it
@@ -214,12 +216,20 @@ public class BaseIconFactory implements AutoCloseable {
         icon = normalizeAndWrapToAdaptiveIcon(icon, shrinkNonAdaptiveIcons, null, scale);
         Bitmap bitmap = createIconBitmap(icon, scale[0], MODE_WITH_SHADOW);
 
-        int color = (options != null && options.mExtractedColor != null)
-                ? options.mExtractedColor : mColorExtractor.findDominantColorByHue(bitmap);
+        int[] palette = null;
+        final int color;
+        if (options != null && options.mExtractedColor != null) {
+            color = options.mExtractedColor;
+        } else {
+            palette = new int[ColorExtractor.PALETTE_SIZE];
+            color = mColorExtractor.findDominantColorByHue(bitmap, palette);
+        }
         BitmapInfo info = BitmapInfo.of(bitmap, color);
+        info.setPalette(palette);
 
         if (icon instanceof BitmapInfo.Extender) {
             info = ((BitmapInfo.Extender) icon).getExtendedInfo(bitmap, color, this, scale[0]);
+            info.setPalette(palette);
         } else if (IconProvider.ATLEAST_T && mMonoIconEnabled) {
             Drawable mono = getMonochromeDrawable(icon);
             if (mono != null) {
@@ -271,6 +281,37 @@ public class BaseIconFactory implements AutoCloseable {
         return op;
     }
 
+    /**
+     * Creates the icon that the activity will have after the next day change, including its
+     * mono icon, or returns null if its icon does not change with the day
+     * @see IconProvider#getNextDayIcon(LauncherActivityInfo, int)
+     */
+    @Nullable
+    public BitmapInfo createNextDayIconBitmap(@NonNull IconProvider iconProvider,
+            @NonNull LauncherActivityInfo info) {
+        Drawable icon = iconProvider.getNextDayIcon(info, mFillResIconDpi);
+        if (icon == null) {
+            return null;
+        }
+        return createBadgedIconBitmap(icon, new IconOptions().setUser(info.getUser()));
+    }
+
+    /**
+     * Restores the info persisted with the data returned by {@link BitmapInfo#getExtendedData()},
+     * or returns null if the data is not supported
+     */
+    @Nullable
+    public BitmapInfo restoreBitmapInfo(@NonNull Bitmap icon, int color,
+            @BitmapInfoFlags int flags, @NonNull byte[] extendedData) {
+        switch (BitmapInfo.getExtendedDataType(extendedData)) {
+            case BitmapInfo.EXTENDED_DATA_TYPE_CLOCK:
+                return ClockDrawableWrapper.restoreBitmapInfo(
+                        icon, color, flags, extendedData, this);
+            default:
+                return null;
+        }
+    }
+
     @NonNull
     public Bitmap getWhiteShadowLayer() {
         if (mWhiteShadowLayer == null) {
@@ -340,6 +381,7 @@ public class BaseIconFactory implements AutoCloseable {
     protected Bitmap createIconBitmap(@Nullable final Drawable icon, final float scale,
             @BitmapGenerationMode int bitmapGenerationMode) {
         final int size = mIconBitmapSize;
+        final long startTime = IconMetrics.startTimer();
         final Bitmap bitmap;
         switch (bitmapGenerationMode) {
             case MODE_ALPHA:
@@ -347,8 +389,10 @@ public class BaseIconFactory implements AutoCloseable {
                 break;
             case MODE_HARDWARE:
             case MODE_HARDWARE_WITH_SHADOW: {
-                return BitmapRenderer.createHardwareBitmap(size, size, canvas ->
+                Bitmap result = BitmapRenderer.createHardwareBitmap(size, size, canvas ->
                         drawIconBitmap(canvas, icon, scale, bitmapGenerationMode, null));
+                IconMetrics.recordRender(bitmapGenerationMode, startTime);
+                return result;
             }
             case MODE_WITH_SHADOW:
             default:
@@ -361,6 +405,7 @@ public class BaseIconFactory implements AutoCloseable {
         mCanvas.setBitmap(bitmap);
         drawIconBitmap(mCanvas, icon, scale, bitmapGenerationMode, bitmap);
         mCanvas.setBitmap(null);
+        IconMetrics.recordRender(bitmapGenerationMode, startTime);
         return bitmap;
     }
 
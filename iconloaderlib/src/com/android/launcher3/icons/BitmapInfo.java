@@ -16,9 +16,13 @@
 package com.android.launcher3.icons;
 
 import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources.Theme;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable.ConstantState;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
@@ -26,6 +30,11 @@ import androidx.annotation.Nullable;
 
 import com.android.launcher3.util.FlagOp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
 public class BitmapInfo {
 
     static final int FLAG_WORK = 1 << 0;
@@ -49,6 +58,15 @@ public class BitmapInfo {
 
     public static final String TAG = "BitmapInfo";
 
+    // Type tags written at the start of the data returned by getExtendedData
+    public static final int EXTENDED_DATA_TYPE_CLOCK = 1;
+
+    // Maximum number of flag/badge variants shared for a single BitmapInfo
+    private static final int MAX_VARIANTS = 8;
+
+    // Theme dependent values used when creating drawables, keyed by the theme
+    private static final WeakHashMap<Theme, ThemeSnapshot> sThemeSnapshots = new WeakHashMap<>();
+
     public final Bitmap icon;
     public final int color;
 
@@ -56,18 +74,36 @@ public class BitmapInfo {
     protected Bitmap mMono;
     protected Bitmap mWhiteShadowLayer;
 
-    public @BitmapInfoFlags int flags;
+    @Nullable
+    protected int[] mPalette;
+
+    // Only set on newly created instances, as variants are shared, see getVariant
+    private @BitmapInfoFlags int mFlags;
     private BitmapInfo badgeInfo;
 
+    // Shared variants of this info with different flags or badge, see getVariant
+    @Nullable
+    private ArrayList<BitmapInfo> mVariants;
+    // The info this variant was derived from, or null if this is not a variant
+    @Nullable
+    private BitmapInfo mVariantSource;
+
     public BitmapInfo(Bitmap icon, int color) {
+        this(icon, color, 0);
+    }
+
+    public BitmapInfo(Bitmap icon, int color, @BitmapInfoFlags int flags) {
         this.icon = icon;
         this.color = color;
+        this.mFlags = flags;
+    }
+
+    public @BitmapInfoFlags int getFlags() {
+        return mFlags;
     }
 
     public BitmapInfo withBadgeInfo(BitmapInfo badgeInfo) {
-        BitmapInfo result = clone();
-        result.badgeInfo = badgeInfo;
-        return result;
+        return getVariant(mFlags, badgeInfo);
     }
 
     /**
@@ -77,15 +113,53 @@ public class BitmapInfo {
         if (op == FlagOp.NO_OP) {
             return this;
         }
-        BitmapInfo result = clone();
-        result.flags = op.apply(result.flags);
-        return result;
+        return getVariant(op.apply(mFlags), badgeInfo);
+    }
+
+    /**
+     * Returns a BitmapInfo same as this one but with the provided flags and badge. Variants are
+     * shared across calls, so that repeated loads do not create duplicate instances.
+     */
+    private BitmapInfo getVariant(int newFlags, @Nullable BitmapInfo newBadgeInfo) {
+        if (mFlags == newFlags && badgeInfo == newBadgeInfo) {
+            return this;
+        }
+        BitmapInfo source = mVariantSource != null ? mVariantSource : this;
+        if (source.mFlags == newFlags && source.badgeInfo == newBadgeInfo) {
+            return source;
+        }
+        synchronized (source) {
+            if (source.mVariants == null) {
+                source.mVariants = new ArrayList<>(2);
+            }
+            for (BitmapInfo variant : source.mVariants) {
+                if (variant.mFlags == newFlags && variant.badgeInfo == newBadgeInfo) {
+                    return variant;
+                }
+            }
+            BitmapInfo result = source.clone();
+            result.mFlags = newFlags;
+            result.badgeInfo = newBadgeInfo;
+            result.mVariantSource = source;
+            if (source.mVariants.size() < MAX_VARIANTS) {
+                source.mVariants.add(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Drops any shared variants, as they no longer match this info
+     */
+    private synchronized void clearVariants() {
+        mVariants = null;
     }
 
     protected BitmapInfo copyInternalsTo(BitmapInfo target) {
         target.mMono = mMono;
         target.mWhiteShadowLayer = mWhiteShadowLayer;
-        target.flags = flags;
+        target.mPalette = mPalette;
+        target.mFlags = mFlags;
         target.badgeInfo = badgeInfo;
         return target;
     }
@@ -95,9 +169,34 @@ public class BitmapInfo {
         return copyInternalsTo(new BitmapInfo(icon, color));
     }
 
+    /**
+     * Returns a low resolution copy of this info, without any icon bitmaps. The color, palette,
+     * flags and badge are kept.
+     */
+    public BitmapInfo toLowRes() {
+        BitmapInfo result = new BitmapInfo(LOW_RES_ICON, color, mFlags);
+        result.mPalette = mPalette;
+        result.badgeInfo = badgeInfo;
+        return result;
+    }
+
+    /**
+     * Returns a copy of this info without the mono icon, or this info if it has no mono icon
+     */
+    public BitmapInfo withoutMono() {
+        if (mMono == null) {
+            return this;
+        }
+        BitmapInfo result = clone();
+        result.mMono = null;
+        result.mWhiteShadowLayer = null;
+        return result;
+    }
+
     public void setMonoIcon(Bitmap mono, BaseIconFactory iconFactory) {
         mMono = mono;
         mWhiteShadowLayer = iconFactory.getWhiteShadowLayer();
+        clearVariants();
     }
 
     /**
@@ -118,10 +217,49 @@ public class BitmapInfo {
         return !isNullOrLowRes();
     }
 
+    /**
+     * Returns any additional data, other than the icon bitmaps, required to restore this info
+     * from persistent storage, or null if the bitmaps are sufficient. The data starts with one
+     * of the EXTENDED_DATA_TYPE_* tags, which is used by
+     * {@link BaseIconFactory#restoreBitmapInfo} to restore the info.
+     *
+     * This is only called when writing to persistent storage and is not cached, as it can be
+     * expensive.
+     */
+    @Nullable
+    public byte[] getExtendedData() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the type tag of data returned by {@link #getExtendedData()}, or -1 if it is invalid
+     */
+    public static int getExtendedDataType(@NonNull byte[] data) {
+        return data.length < Integer.BYTES ? -1 : ByteBuffer.wrap(data).getInt();
+    }
+
     public Bitmap getMono() {
         return mMono;
     }
 
+    /**
+     * Sets the colors of the icon ranked by prominence, see
+     * {@link ColorExtractor#findDominantColorByHue(Bitmap, int[])}
+     */
+    public void setPalette(@Nullable int[] palette) {
+        mPalette = palette;
+        clearVariants();
+    }
+
+    /**
+     * Returns the colors of the icon ranked by prominence, starting with {@link #color}, or null
+     * if the palette is not available. Missing entries are {@link Color#TRANSPARENT}.
+     */
+    @Nullable
+    public int[] getPalette() {
+        return mPalette;
+    }
+
     /**
      * Creates a drawable for the provided BitmapInfo
      */
@@ -147,15 +285,29 @@ public class BitmapInfo {
 
     protected void applyFlags(Context context, FastBitmapDrawable drawable,
             @DrawableCreationFlags int creationFlags) {
-        drawable.mDisabledAlpha = GraphicsUtils.getFloat(context, R.attr.disabledIconAlpha, 1f);
+        ThemeSnapshot snapshot = getThemeSnapshot(context);
+        drawable.mDisabledAlpha = snapshot.disabledAlpha;
         if ((creationFlags & FLAG_NO_BADGE) == 0) {
             if (badgeInfo != null) {
                 drawable.setBadge(badgeInfo.newIcon(context, creationFlags));
-            } else if ((flags & FLAG_INSTANT) != 0) {
-                drawable.setBadge(context.getDrawable(R.drawable.ic_instant_app_badge));
-            } else if ((flags & FLAG_WORK) != 0) {
-                drawable.setBadge(context.getDrawable(R.drawable.ic_work_app_badge));
+            } else if ((mFlags & FLAG_INSTANT) != 0) {
+                drawable.setBadge(snapshot.instantBadge.newDrawable());
+            } else if ((mFlags & FLAG_WORK) != 0) {
+                drawable.setBadge(snapshot.workBadge.newDrawable());
+            }
+        }
+    }
+
+    private static ThemeSnapshot getThemeSnapshot(Context context) {
+        Theme theme = context.getTheme();
+        Configuration config = context.getResources().getConfiguration();
+        synchronized (sThemeSnapshots) {
+            ThemeSnapshot snapshot = sThemeSnapshots.get(theme);
+            if (snapshot == null || !snapshot.isValidFor(config)) {
+                snapshot = new ThemeSnapshot(context, config);
+                sThemeSnapshots.put(theme, snapshot);
             }
+            return snapshot;
         }
     }
 
@@ -167,6 +319,39 @@ public class BitmapInfo {
         return new BitmapInfo(bitmap, color);
     }
 
+    public static BitmapInfo of(@NonNull Bitmap bitmap, int color,
+            @BitmapInfoFlags int flags) {
+        return new BitmapInfo(bitmap, color, flags);
+    }
+
+    /**
+     * Theme attributes and badges used for creating icon drawables, so that they are not looked
+     * up or inflated for every icon
+     */
+    private static class ThemeSnapshot {
+
+        final float disabledAlpha;
+        final ConstantState instantBadge;
+        final ConstantState workBadge;
+
+        // Configuration values which can affect the badges
+        private final int mUiMode;
+        private final int mDensityDpi;
+
+        ThemeSnapshot(Context context, Configuration config) {
+            disabledAlpha = GraphicsUtils.getFloat(context, R.attr.disabledIconAlpha, 1f);
+            instantBadge = context.getDrawable(R.drawable.ic_instant_app_badge)
+                    .getConstantState();
+            workBadge = context.getDrawable(R.drawable.ic_work_app_badge).getConstantState();
+            mUiMode = config.uiMode;
+            mDensityDpi = config.densityDpi;
+        }
+
+        boolean isValidFor(Configuration config) {
+            return mUiMode == config.uiMode && mDensityDpi == config.densityDpi;
+        }
+    }
+
     /**
      * Interface to be implemented by drawables to provide a custom BitmapInfo
      */
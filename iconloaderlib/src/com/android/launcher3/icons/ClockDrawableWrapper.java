@@ -24,28 +24,48 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.graphics.BlendMode;
 import android.graphics.BlendModeColorFilter;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
+import android.graphics.Matrix;
+import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
+import android.graphics.drawable.RotateDrawable;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.SystemClock;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.TypedValue;
 
 import androidx.annotation.Nullable;
 
+import com.android.launcher3.icons.BitmapInfo.BitmapInfoFlags;
 import com.android.launcher3.icons.IconProvider.ThemeData;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.IntFunction;
 
@@ -59,7 +79,12 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
     private static final String TAG = "ClockDrawableWrapper";
 
     private static final boolean DISABLE_SECONDS = true;
+    // If true, the layers of clock icons with rotating hands are rasterized once, and only the
+    // hands are rotated when the time changes, instead of drawing all the layers on every frame
+    private static final boolean CACHE_RENDERING = true;
     private static final int NO_COLOR = -1;
+    // Level range of RotateDrawable
+    private static final float MAX_LEVEL = 10000;
 
     // Time after which the clock icon should check for an update. The actual invalidate
     // will only happen in case of any change.
@@ -83,6 +108,9 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
     /* Number of levels to jump per second for the second hand */
     private static final int LEVELS_PER_SECOND = 10;
 
+    // Version of the format returned by ClockBitmapInfo#getExtendedData
+    private static final int EXTENDED_DATA_VERSION = 1;
+
     public static final int INVALID_VALUE = -1;
 
     private final AnimationInfo mAnimationInfo = new AnimationInfo();
@@ -128,7 +156,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         Drawable d = mThemeInfo.baseDrawableState.newDrawable().mutate();
         if (d instanceof AdaptiveIconDrawable) {
             Drawable mono = ((AdaptiveIconDrawable) d).getForeground();
-            mThemeInfo.applyTime(Calendar.getInstance(), (LayerDrawable) mono);
+            mThemeInfo.applyTime((LayerDrawable) mono);
             return mono;
         }
         return null;
@@ -144,7 +172,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             PackageManager pm = context.getPackageManager();
             ApplicationInfo appInfo =  pm.getApplicationInfo(pkg,
                     PackageManager.MATCH_UNINSTALLED_PACKAGES | PackageManager.GET_META_DATA);
-            Resources res = pm.getResourcesForApplication(appInfo);
+            Resources res = PackageResourcesCache.getResources(pm, appInfo);
             ClockDrawableWrapper wrapper = forExtras(appInfo.metaData,
                     resId -> res.getDrawableForDensity(resId, iconDpi));
             if (wrapper != null && themeData != null) {
@@ -205,7 +233,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             wrapper.mThemeInfo = info.copyForIcon(new AdaptiveIconDrawable(
                     new ColorDrawable(Color.WHITE), aid.getMonochrome().mutate()));
         }
-        info.applyTime(Calendar.getInstance(), foreground);
+        info.applyTime(foreground);
         return wrapper;
     }
 
@@ -220,7 +248,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         // Only pass theme info if mono-icon is enabled
         AnimationInfo themeInfo = iconFactory.mMonoIconEnabled ? mThemeInfo : null;
         Bitmap themeBG = themeInfo == null ? null : iconFactory.getWhiteShadowLayer();
-        return new ClockBitmapInfo(bitmap, color, normalizationScale,
+        return new ClockBitmapInfo(bitmap, color, 0, normalizationScale,
                 mAnimationInfo, flattenBG, themeInfo, themeBG);
     }
 
@@ -231,7 +259,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         resetLevel(foreground, mAnimationInfo.minuteLayerIndex);
         resetLevel(foreground, mAnimationInfo.secondLayerIndex);
         draw(canvas);
-        mAnimationInfo.applyTime(Calendar.getInstance(), (LayerDrawable) getForeground());
+        mAnimationInfo.applyTime((LayerDrawable) getForeground());
     }
 
     private void resetLevel(LayerDrawable drawable, int index) {
@@ -240,6 +268,67 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         }
     }
 
+    /**
+     * Notifies all the clock icons that the time or the timezone was changed externally
+     */
+    static void onTimeChanged() {
+        ClockTicker.INSTANCE.onTimeChanged();
+    }
+
+    /**
+     * Restores the info for a clock icon from the data returned by
+     * {@link BitmapInfo#getExtendedData()}, without loading anything from the clock package.
+     * Returns null if the data is not valid.
+     */
+    @Nullable
+    static BitmapInfo restoreBitmapInfo(Bitmap icon, int color, @BitmapInfoFlags int flags,
+            byte[] data, BaseIconFactory iconFactory) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != BitmapInfo.EXTENDED_DATA_TYPE_CLOCK
+                    || in.readInt() != EXTENDED_DATA_VERSION) {
+                return null;
+            }
+            float boundsOffset = in.readFloat();
+            Bitmap background = readBitmap(in);
+            AnimationInfo animInfo = AnimationInfo.readFrom(in);
+            AnimationInfo themeInfo = in.readBoolean() ? AnimationInfo.readFrom(in) : null;
+            Bitmap themeBG = themeInfo == null ? null : iconFactory.getWhiteShadowLayer();
+            return new ClockBitmapInfo(icon, color, flags, 1 - 2 * boundsOffset,
+                    animInfo, background, themeInfo, themeBG);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to restore clock icon", e);
+            return null;
+        }
+    }
+
+    private static void writeBitmap(DataOutputStream out, Bitmap bitmap) throws IOException {
+        if (bitmap.getConfig() == Config.HARDWARE) {
+            bitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
+        }
+        byte[] data = bitmap == null ? null : GraphicsUtils.flattenBitmap(bitmap);
+        if (data == null) {
+            throw new IOException("Unable to flatten bitmap");
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static Bitmap readBitmap(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > in.available()) {
+            throw new IOException("Invalid bitmap length " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inPreferredConfig = Config.HARDWARE;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, length, decodeOptions);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode bitmap");
+        }
+        return bitmap;
+    }
+
     private static class AnimationInfo {
 
         public ConstantState baseDrawableState;
@@ -251,6 +340,10 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         public int defaultMinute;
         public int defaultSecond;
 
+        // Result of canWrite, computed on first use
+        @Nullable
+        private Boolean mCanWrite;
+
         public AnimationInfo copyForIcon(Drawable icon) {
             AnimationInfo result = new AnimationInfo();
             result.baseDrawableState = icon.getConstantState();
@@ -263,25 +356,206 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             return result;
         }
 
-        boolean applyTime(Calendar time, LayerDrawable foregroundDrawable) {
-            time.setTimeInMillis(System.currentTimeMillis());
+        /**
+         * Returns true if this info can be written by {@link #writeTo}, without rasterizing any
+         * layer
+         */
+        boolean canWrite() {
+            if (mCanWrite == null) {
+                mCanWrite = getWritableForeground(baseDrawableState.newDrawable()) != null;
+            }
+            return mCanWrite;
+        }
+
+        /**
+         * Returns the foreground of the drawable if all the hands are rotating layers, or null
+         */
+        @Nullable
+        private LayerDrawable getWritableForeground(Drawable drawable) {
+            if (!(drawable instanceof AdaptiveIconDrawable)
+                    || !(((AdaptiveIconDrawable) drawable).getForeground()
+                            instanceof LayerDrawable)) {
+                return null;
+            }
+            LayerDrawable foreground =
+                    (LayerDrawable) ((AdaptiveIconDrawable) drawable).getForeground();
+            int layerCount = foreground.getNumberOfLayers();
+            for (int index : new int[] {hourLayerIndex, minuteLayerIndex, secondLayerIndex}) {
+                if (index == INVALID_VALUE) {
+                    continue;
+                }
+                if (index >= layerCount
+                        || !(foreground.getDrawable(index) instanceof RotateDrawable)
+                        || ((RotateDrawable) foreground.getDrawable(index)).getDrawable() == null) {
+                    return null;
+                }
+            }
+            return foreground;
+        }
+
+        /**
+         * Writes a resource independent form of this info, with the foreground layers rasterized
+         * for the provided icon size. Hands are kept as separate rotating layers, while the
+         * layers between them are merged.
+         *
+         * @throws IOException if the foreground can not be represented in this form
+         */
+        void writeTo(DataOutputStream out, int iconSize) throws IOException {
+            Drawable drawable = baseDrawableState.newDrawable().mutate();
+            if (getWritableForeground(drawable) == null) {
+                throw new IOException("Unsupported clock layers");
+            }
+            drawable.setBounds(0, 0, iconSize, iconSize);
+            LayerDrawable foreground =
+                    (LayerDrawable) ((AdaptiveIconDrawable) drawable).getForeground();
+            Rect fgBounds = foreground.getBounds();
+            int layerCount = foreground.getNumberOfLayers();
+
+            // Hand drawable for every rasterized layer, or null for static layers
+            List<RotateDrawable> hands = new ArrayList<>();
+            List<Bitmap> sprites = new ArrayList<>();
+            int[] newIndex = new int[layerCount];
+            try {
+                int staticStart = 0;
+                for (int i = 0; i <= layerCount; i++) {
+                    boolean isHand = i == hourLayerIndex || i == minuteLayerIndex
+                            || i == secondLayerIndex;
+                    if (i < layerCount && !isHand) {
+                        continue;
+                    }
+                    if (staticStart < i) {
+                        int start = staticStart;
+                        int end = i;
+                        sprites.add(rasterize(fgBounds, c -> {
+                            for (int j = start; j < end; j++) {
+                                Drawable layer = foreground.getDrawable(j);
+                                if (layer != null) {
+                                    layer.draw(c);
+                                }
+                            }
+                        }));
+                        hands.add(null);
+                    }
+                    if (isHand) {
+                        RotateDrawable hand = (RotateDrawable) foreground.getDrawable(i);
+                        newIndex[i] = sprites.size();
+                        // The hand is drawn without any rotation, which is applied on restore
+                        sprites.add(rasterize(fgBounds, hand.getDrawable()::draw));
+                        hands.add(hand);
+                    }
+                    staticStart = i + 1;
+                }
+
+                out.writeInt(hourLayerIndex == INVALID_VALUE
+                        ? INVALID_VALUE : newIndex[hourLayerIndex]);
+                out.writeInt(minuteLayerIndex == INVALID_VALUE
+                        ? INVALID_VALUE : newIndex[minuteLayerIndex]);
+                out.writeInt(secondLayerIndex == INVALID_VALUE
+                        ? INVALID_VALUE : newIndex[secondLayerIndex]);
+                out.writeInt(defaultHour);
+                out.writeInt(defaultMinute);
+                out.writeInt(defaultSecond);
+
+                out.writeInt(sprites.size());
+                for (int i = 0; i < sprites.size(); i++) {
+                    RotateDrawable hand = hands.get(i);
+                    out.writeBoolean(hand != null);
+                    if (hand != null) {
+                        // Pivots are stored relative to the foreground bounds, as all the
+                        // restored layers fill the foreground
+                        Rect b = hand.getBounds();
+                        float pivotX = hand.isPivotXRelative()
+                                ? hand.getPivotX() * b.width() : hand.getPivotX();
+                        float pivotY = hand.isPivotYRelative()
+                                ? hand.getPivotY() * b.height() : hand.getPivotY();
+                        out.writeFloat(hand.getFromDegrees());
+                        out.writeFloat(hand.getToDegrees());
+                        out.writeFloat((b.left + pivotX - fgBounds.left) / fgBounds.width());
+                        out.writeFloat((b.top + pivotY - fgBounds.top) / fgBounds.height());
+                    }
+                    writeBitmap(out, sprites.get(i));
+                }
+            } finally {
+                for (Bitmap sprite : sprites) {
+                    sprite.recycle();
+                }
+            }
+        }
+
+        private static Bitmap rasterize(Rect bounds, BitmapRenderer renderer) {
+            return BitmapRenderer.createSoftwareBitmap(bounds.width(), bounds.height(), c -> {
+                c.translate(-bounds.left, -bounds.top);
+                renderer.draw(c);
+            });
+        }
+
+        /**
+         * Reads the info written by {@link #writeTo(DataOutputStream, int)}
+         */
+        static AnimationInfo readFrom(DataInputStream in) throws IOException {
+            AnimationInfo info = new AnimationInfo();
+            info.hourLayerIndex = in.readInt();
+            info.minuteLayerIndex = in.readInt();
+            info.secondLayerIndex = in.readInt();
+            info.defaultHour = in.readInt();
+            info.defaultMinute = in.readInt();
+            info.defaultSecond = in.readInt();
+
+            int layerCount = in.readInt();
+            if (layerCount < 0 || info.hourLayerIndex >= layerCount
+                    || info.minuteLayerIndex >= layerCount
+                    || info.secondLayerIndex >= layerCount) {
+                throw new IOException("Invalid layer count " + layerCount);
+            }
+            Drawable[] layers = new Drawable[layerCount];
+            for (int i = 0; i < layerCount; i++) {
+                RotateDrawable hand = null;
+                if (in.readBoolean()) {
+                    hand = new RotateDrawable();
+                    hand.setFromDegrees(in.readFloat());
+                    hand.setToDegrees(in.readFloat());
+                    hand.setPivotXRelative(true);
+                    hand.setPivotX(in.readFloat());
+                    hand.setPivotYRelative(true);
+                    hand.setPivotY(in.readFloat());
+                }
+                Drawable sprite = new BitmapDrawable(null, readBitmap(in));
+                if (hand != null) {
+                    hand.setDrawable(sprite);
+                    layers[i] = hand;
+                } else {
+                    layers[i] = sprite;
+                }
+            }
+            // Only the foreground is drawn from the base drawable, the background is flattened
+            info.baseDrawableState = new AdaptiveIconDrawable(
+                    new ColorDrawable(Color.TRANSPARENT), new LayerDrawable(layers))
+                    .getConstantState();
+            return info;
+        }
+
+        boolean applyTime(LayerDrawable foregroundDrawable) {
+            int time = ClockTicker.INSTANCE.getTime();
+            int hours = time / 3600;
+            int minutes = (time / 60) % 60;
+            int seconds = time % 60;
 
             // We need to rotate by the difference from the default time if one is specified.
-            int convertedHour = (time.get(Calendar.HOUR) + (12 - defaultHour)) % 12;
-            int convertedMinute = (time.get(Calendar.MINUTE) + (60 - defaultMinute)) % 60;
-            int convertedSecond = (time.get(Calendar.SECOND) + (60 - defaultSecond)) % 60;
+            int convertedHour = (hours + (12 - defaultHour)) % 12;
+            int convertedMinute = (minutes + (60 - defaultMinute)) % 60;
+            int convertedSecond = (seconds + (60 - defaultSecond)) % 60;
 
             boolean invalidate = false;
             if (hourLayerIndex != INVALID_VALUE) {
                 final Drawable hour = foregroundDrawable.getDrawable(hourLayerIndex);
-                if (hour.setLevel(convertedHour * 60 + time.get(Calendar.MINUTE))) {
+                if (hour.setLevel(convertedHour * 60 + minutes)) {
                     invalidate = true;
                 }
             }
 
             if (minuteLayerIndex != INVALID_VALUE) {
                 final Drawable minute = foregroundDrawable.getDrawable(minuteLayerIndex);
-                if (minute.setLevel(time.get(Calendar.HOUR) * 60 + convertedMinute)) {
+                if (minute.setLevel(hours * 60 + convertedMinute)) {
                     invalidate = true;
                 }
             }
@@ -307,10 +581,10 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         public final AnimationInfo themeData;
         public final Bitmap themeBackground;
 
-        ClockBitmapInfo(Bitmap icon, int color, float scale,
+        ClockBitmapInfo(Bitmap icon, int color, @BitmapInfoFlags int flags, float scale,
                 AnimationInfo animInfo, Bitmap background,
                 AnimationInfo themeInfo, Bitmap themeBackground) {
-            super(icon, color);
+            super(icon, color, flags);
             this.boundsOffset = Math.max(ShadowGenerator.BLUR_FACTOR, (1 - scale) / 2);
             this.animInfo = animInfo;
             this.mFlattenedBackground = background;
@@ -327,7 +601,7 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             int themedFgColor;
             ColorFilter bgFilter;
             if ((creationFlags & FLAG_THEMED) != 0 && themeData != null) {
-                int[] colors = ThemedIconDrawable.getColors(context);
+                int[] colors = ThemedIconDrawable.getSharedColors(context);
                 Drawable tintedDrawable = themeData.baseDrawableState.newDrawable().mutate();
                 themedFgColor = colors[1];
                 tintedDrawable.setTint(colors[1]);
@@ -352,19 +626,134 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
 
         @Override
         public boolean canPersist() {
-            return false;
+            return super.canPersist() && animInfo != null && animInfo.canWrite()
+                    && (themeData == null || themeData.canWrite());
+        }
+
+        @Override
+        @Nullable
+        public byte[] getExtendedData() throws IOException {
+            if (!canPersist()) {
+                throw new IOException("Clock icon can not be persisted");
+            }
+            int iconSize = icon.getWidth();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(EXTENDED_DATA_TYPE_CLOCK);
+                out.writeInt(EXTENDED_DATA_VERSION);
+                out.writeFloat(boundsOffset);
+                writeBitmap(out, mFlattenedBackground);
+                animInfo.writeTo(out, iconSize);
+                out.writeBoolean(themeData != null);
+                if (themeData != null) {
+                    themeData.writeTo(out, iconSize);
+                }
+            }
+            return bytes.toByteArray();
         }
 
         @Override
         public BitmapInfo clone() {
-            return copyInternalsTo(new ClockBitmapInfo(icon, color, 1 - 2 * boundsOffset, animInfo,
-                    mFlattenedBackground, themeData, themeBackground));
+            return copyInternalsTo(new ClockBitmapInfo(icon, color, getFlags(),
+                    1 - 2 * boundsOffset, animInfo, mFlattenedBackground, themeData,
+                    themeBackground));
         }
     }
 
-    private static class ClockIconDrawable extends FastBitmapDrawable implements Runnable {
+    /**
+     * Process wide time source for clock icons. The time is computed once per tick and all the
+     * visible clock icons are updated together, aligned to the {@link #TICK_MS} boundaries.
+     */
+    private static final class ClockTicker implements Runnable {
+
+        static final ClockTicker INSTANCE = new ClockTicker();
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Calendar mCalendar = Calendar.getInstance();
+
+        // Drawables updated on every tick. Weak, as drawables are not always hidden before
+        // being dropped.
+        private final Set<ClockIconDrawable> mDrawables =
+                Collections.newSetFromMap(new WeakHashMap<>());
+        private boolean mTickScheduled;
+
+        // Time of the day in seconds, in the 12 hour format
+        private volatile int mTime;
+        // Wall time at which mTime needs to be computed again
+        private volatile long mValidUntil;
+
+        /**
+         * Returns the current time of the day in seconds, in the 12 hour format
+         */
+        int getTime() {
+            long now = System.currentTimeMillis();
+            long validUntil = mValidUntil;
+            // Also check the start of the tick, in case the wall time was moved back
+            if (now >= validUntil || now < validUntil - TICK_MS) {
+                updateTime();
+            }
+            return mTime;
+        }
 
-        private final Calendar mTime = Calendar.getInstance();
+        private void updateTime() {
+            synchronized (mCalendar) {
+                long now = System.currentTimeMillis();
+                mCalendar.setTimeZone(TimeZone.getDefault());
+                mCalendar.setTimeInMillis(now);
+                mTime = mCalendar.get(Calendar.HOUR) * 3600
+                        + mCalendar.get(Calendar.MINUTE) * 60
+                        + mCalendar.get(Calendar.SECOND);
+                mValidUntil = now - (now % TICK_MS) + TICK_MS;
+            }
+        }
+
+        /**
+         * Updates the time and all the clock icons, instead of waiting for the next tick
+         */
+        void onTimeChanged() {
+            mHandler.removeCallbacks(this);
+            mHandler.post(this);
+        }
+
+        void register(ClockIconDrawable drawable) {
+            synchronized (mDrawables) {
+                mDrawables.add(drawable);
+                if (!mTickScheduled) {
+                    mTickScheduled = true;
+                    mHandler.postDelayed(this, getDelayToNextTick());
+                }
+            }
+        }
+
+        void unregister(ClockIconDrawable drawable) {
+            synchronized (mDrawables) {
+                mDrawables.remove(drawable);
+            }
+        }
+
+        private long getDelayToNextTick() {
+            getTime();
+            return Math.max(0, mValidUntil - System.currentTimeMillis());
+        }
+
+        @Override
+        public void run() {
+            updateTime();
+            ClockIconDrawable[] drawables;
+            synchronized (mDrawables) {
+                drawables = mDrawables.toArray(new ClockIconDrawable[mDrawables.size()]);
+                mTickScheduled = !mDrawables.isEmpty();
+                if (mTickScheduled) {
+                    mHandler.postDelayed(this, getDelayToNextTick());
+                }
+            }
+            for (ClockIconDrawable drawable : drawables) {
+                drawable.onTimeTick();
+            }
+        }
+    }
+
+    private static class ClockIconDrawable extends FastBitmapDrawable {
 
         private final float mBoundsOffset;
         private final AnimationInfo mAnimInfo;
@@ -378,6 +767,14 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
         private final LayerDrawable mFG;
         private final float mCanvasScale;
 
+        // Whether the hands are all rotating layers, which can be drawn using ClockSprites
+        private final boolean mCanUseSprites;
+        private final Paint mSpritePaint =
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        // Layers rasterized for the current size, created on first use
+        @Nullable
+        private ClockSprites mSprites;
+
         ClockIconDrawable(ClockConstantState cs) {
             super(cs.mBitmap, cs.mIconColor);
             mBoundsOffset = cs.mBoundsOffset;
@@ -394,8 +791,10 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
 
             // Time needs to be applied here since drawInternal is NOT guaranteed to be called
             // before this foreground drawable is shown on the screen.
-            mAnimInfo.applyTime(mTime, mFG);
+            mAnimInfo.applyTime(mFG);
             mCanvasScale = 1 - 2 * mBoundsOffset;
+            mCanUseSprites = CACHE_RENDERING
+                    && mAnimInfo.getWritableForeground(mFullDrawable) != null;
         }
 
         @Override
@@ -420,18 +819,64 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
                 super.drawInternal(canvas, bounds);
                 return;
             }
+            mAnimInfo.applyTime(mFG);
+            // The sprites are only rendered for the default state, disabled state and alpha
+            // changes are drawn directly
+            if (mCanUseSprites && !mIsDisabled && getAlpha() == FULLY_OPAQUE
+                    && !bounds.isEmpty()) {
+                drawSprites(canvas, bounds);
+            } else {
+                drawLayers(canvas, bounds);
+            }
+
+            if (isVisible()) {
+                ClockTicker.INSTANCE.register(this);
+            }
+        }
+
+        private void drawSprites(Canvas canvas, Rect bounds) {
+            ClockSprites sprites = mSprites;
+            if (sprites == null || sprites.width != bounds.width()
+                    || sprites.height != bounds.height()) {
+                sprites = mSprites = new ClockSprites(this, bounds.width(), bounds.height());
+            }
+
+            int saveCount = canvas.save();
+            canvas.translate(bounds.left, bounds.top);
+            canvas.drawBitmap(sprites.dial, 0, 0, mSpritePaint);
+            if (sprites.layers.length > 0) {
+                canvas.clipPath(sprites.clip);
+                Rect layerBounds = sprites.layerBounds;
+                for (int i = 0; i < sprites.layers.length; i++) {
+                    RotateDrawable hand = sprites.hands[i];
+                    if (hand == null) {
+                        canvas.drawBitmap(sprites.layers[i],
+                                layerBounds.left, layerBounds.top, mSpritePaint);
+                        continue;
+                    }
+                    float from = hand.getFromDegrees();
+                    float degrees = from
+                            + (hand.getToDegrees() - from) * hand.getLevel() / MAX_LEVEL;
+                    canvas.save();
+                    canvas.rotate(degrees, sprites.pivots[2 * i], sprites.pivots[2 * i + 1]);
+                    canvas.drawBitmap(sprites.layers[i],
+                            layerBounds.left, layerBounds.top, mSpritePaint);
+                    canvas.restore();
+                }
+            }
+            canvas.restoreToCount(saveCount);
+        }
+
+        private void drawLayers(Canvas canvas, Rect bounds) {
             canvas.drawBitmap(mBG, null, bounds, mBgPaint);
 
-            // prepare and draw the foreground
-            mAnimInfo.applyTime(mTime, mFG);
+            // draw the foreground
             int saveCount = canvas.save();
             canvas.translate(bounds.left, bounds.top);
             canvas.scale(mCanvasScale, mCanvasScale, bounds.width() / 2, bounds.height() / 2);
             canvas.clipPath(mFullDrawable.getIconMask());
             mFG.draw(canvas);
             canvas.restoreToCount(saveCount);
-
-            reschedule();
         }
 
         @Override
@@ -453,43 +898,144 @@ public class ClockDrawableWrapper extends AdaptiveIconDrawable implements Bitmap
             return isThemed() ? mThemedFgColor : super.getIconColor();
         }
 
-        @Override
-        public void run() {
-            if (mAnimInfo.applyTime(mTime, mFG)) {
+        /**
+         * Called by {@link ClockTicker} on every tick while this drawable is visible
+         */
+        void onTimeTick() {
+            if (mAnimInfo.applyTime(mFG)) {
                 invalidateSelf();
-            } else {
-                reschedule();
             }
         }
 
         @Override
         public boolean setVisible(boolean visible, boolean restart) {
             boolean result = super.setVisible(visible, restart);
-            if (visible) {
-                reschedule();
-            } else {
-                unscheduleSelf(this);
+            if (mAnimInfo != null) {
+                if (visible) {
+                    ClockTicker.INSTANCE.register(this);
+                } else {
+                    ClockTicker.INSTANCE.unregister(this);
+                }
             }
             return result;
         }
 
-        private void reschedule() {
-            if (!isVisible()) {
-                return;
-            }
-
-            unscheduleSelf(this);
-            final long upTime = SystemClock.uptimeMillis();
-            final long step = TICK_MS; /* tick every 200 ms */
-            scheduleSelf(this, upTime - ((upTime % step)) + step);
-        }
-
         @Override
         public FastBitmapConstantState newConstantState() {
             return new ClockConstantState(mBitmap, mIconColor, mThemedFgColor, mBoundsOffset,
                     mAnimInfo, mBG, mBgPaint.getColorFilter());
         }
 
+        /**
+         * Layers of a clock icon rasterized for a given size. The background and the layers
+         * below the first hand are merged in the dial, the hands are drawn without any rotation
+         * and the static layers between them are merged.
+         */
+        private static class ClockSprites {
+
+            final int width;
+            final int height;
+
+            final Bitmap dial;
+            // Icon mask, to be applied when drawing the layers over the dial
+            final Path clip = new Path();
+            // Bounds of all the layers, relative to the icon bounds
+            final Rect layerBounds = new Rect();
+            final Bitmap[] layers;
+            // Hand for every layer, or null for static layers
+            final RotateDrawable[] hands;
+            // Rotation pivot of every hand, relative to the icon bounds
+            final float[] pivots;
+
+            ClockSprites(ClockIconDrawable d, int width, int height) {
+                this.width = width;
+                this.height = height;
+                AnimationInfo info = d.mAnimInfo;
+                LayerDrawable fg = d.mFG;
+
+                // Same transformation as drawLayers
+                Matrix matrix = new Matrix();
+                matrix.setScale(d.mCanvasScale, d.mCanvasScale, width / 2f, height / 2f);
+                d.mFullDrawable.getIconMask().transform(matrix, clip);
+                RectF fgBounds = new RectF(fg.getBounds());
+                matrix.mapRect(fgBounds);
+                fgBounds.roundOut(layerBounds);
+
+                int layerCount = fg.getNumberOfLayers();
+                int firstHand = layerCount;
+                for (int index : new int[] {info.hourLayerIndex, info.minuteLayerIndex,
+                        info.secondLayerIndex}) {
+                    if (index != INVALID_VALUE) {
+                        firstHand = Math.min(firstHand, index);
+                    }
+                }
+                int dialEnd = firstHand;
+                dial = BitmapRenderer.createSoftwareBitmap(width, height, c -> {
+                    c.drawBitmap(d.mBG, null, new Rect(0, 0, width, height), d.mBgPaint);
+                    c.clipPath(clip);
+                    c.concat(matrix);
+                    drawLayers(c, fg, 0, dialEnd);
+                });
+
+                List<Bitmap> layerList = new ArrayList<>();
+                List<RotateDrawable> handList = new ArrayList<>();
+                int staticStart = firstHand;
+                for (int i = firstHand; i <= layerCount; i++) {
+                    boolean isHand = i == info.hourLayerIndex || i == info.minuteLayerIndex
+                            || i == info.secondLayerIndex;
+                    if (i < layerCount && !isHand) {
+                        continue;
+                    }
+                    if (staticStart < i) {
+                        int start = staticStart;
+                        int end = i;
+                        layerList.add(rasterize(matrix, c -> drawLayers(c, fg, start, end)));
+                        handList.add(null);
+                    }
+                    if (isHand) {
+                        RotateDrawable hand = (RotateDrawable) fg.getDrawable(i);
+                        layerList.add(rasterize(matrix, hand.getDrawable()::draw));
+                        handList.add(hand);
+                    }
+                    staticStart = i + 1;
+                }
+                layers = layerList.toArray(new Bitmap[layerList.size()]);
+                hands = handList.toArray(new RotateDrawable[handList.size()]);
+
+                pivots = new float[2 * hands.length];
+                for (int i = 0; i < hands.length; i++) {
+                    RotateDrawable hand = hands[i];
+                    if (hand == null) {
+                        continue;
+                    }
+                    Rect b = hand.getBounds();
+                    pivots[2 * i] = b.left + (hand.isPivotXRelative()
+                            ? hand.getPivotX() * b.width() : hand.getPivotX());
+                    pivots[2 * i + 1] = b.top + (hand.isPivotYRelative()
+                            ? hand.getPivotY() * b.height() : hand.getPivotY());
+                }
+                matrix.mapPoints(pivots);
+            }
+
+            private Bitmap rasterize(Matrix matrix, BitmapRenderer renderer) {
+                return BitmapRenderer.createSoftwareBitmap(
+                        layerBounds.width(), layerBounds.height(), c -> {
+                            c.translate(-layerBounds.left, -layerBounds.top);
+                            c.concat(matrix);
+                            renderer.draw(c);
+                        });
+            }
+
+            private static void drawLayers(Canvas c, LayerDrawable fg, int start, int end) {
+                for (int i = start; i < end; i++) {
+                    Drawable layer = fg.getDrawable(i);
+                    if (layer != null) {
+                        layer.draw(c);
+                    }
+                }
+            }
+        }
+
         private static class ClockConstantState extends FastBitmapConstantState {
 
             private final float mBoundsOffset;
@@ -16,8 +16,9 @@
 package com.android.launcher3.icons;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.Color;
-import android.util.SparseArray;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 
@@ -30,17 +31,56 @@ public class ColorExtractor {
 
     private final int NUM_SAMPLES = 20;
 
-    @NonNull
-    private final float[] mTmpHsv = new float[3];
+    // Default number of colors in a palette, see findDominantColorByHue(Bitmap, int[])
+    public static final int PALETTE_SIZE = 3;
+
+    // Minimum distance between the hues of two colors in a palette
+    private static final int MIN_PALETTE_HUE_DISTANCE = 30;
+
+    // Number of hue buckets, one per integer hue
+    private static final int HUE_BUCKETS = 360;
+
+    // Lookup for converting a color component to [0, 1], same as Color.colorToHSV
+    private static final float[] BYTE_TO_UNIT = new float[256];
+
+    static {
+        for (int i = 0; i < BYTE_TO_UNIT.length; i++) {
+            BYTE_TO_UNIT[i] = i / 255f;
+        }
+    }
 
     @NonNull
-    private final float[] mTmpHueScoreHistogram = new float[360];
+    private final float[] mTmpHueScoreHistogram = new float[HUE_BUCKETS];
 
     @NonNull
     private final int[] mTmpPixels = new int[NUM_SAMPLES];
 
     @NonNull
-    private final SparseArray<Float> mTmpRgbScores = new SparseArray<>();
+    private final int[] mTmpHues = new int[NUM_SAMPLES];
+
+    @NonNull
+    private final int[] mTmpSvBuckets = new int[NUM_SAMPLES];
+
+    @NonNull
+    private final float[] mTmpSvScores = new float[NUM_SAMPLES];
+
+    @NonNull
+    private final int[] mTmpBucketKeys = new int[NUM_SAMPLES];
+
+    @NonNull
+    private final float[] mTmpBucketScores = new float[NUM_SAMPLES];
+
+    @NonNull
+    private int[] mTmpRow = new int[0];
+
+    @NonNull
+    private int[] mTmpPickedHues = new int[PALETTE_SIZE];
+
+    // State of the current sampling pass
+    private int mSampleLimit;
+    private int mPixelCount;
+    private int mBestHue;
+    private float mHighScore;
 
     /**
      * This picks a dominant color, looking for high-saturation, high-value, repeated hues.
@@ -50,89 +90,206 @@ public class ColorExtractor {
         return findDominantColorByHue(bitmap, NUM_SAMPLES);
     }
 
+    /**
+     * Same as {@link #findDominantColorByHue(Bitmap)}, but also fills {@param outPalette} with
+     * colors of other prominent hues, in the same sampling pass.
+     * @param outPalette array to receive the colors ranked by score. The first entry is always
+     *                   the dominant color, entries which could not be filled are set to
+     *                   {@link Color#TRANSPARENT}.
+     */
+    public int findDominantColorByHue(@NonNull final Bitmap bitmap,
+            @NonNull final int[] outPalette) {
+        int color = findDominantColorByHue(bitmap, NUM_SAMPLES);
+        fillPalette(color, outPalette);
+        return color;
+    }
+
     /**
      * This picks a dominant color, looking for high-saturation, high-value, repeated hues.
      * @param bitmap The bitmap to scan
      */
-    protected int findDominantColorByHue(@NonNull final Bitmap bitmap, final int samples) {
+    protected int findDominantColorByHue(@NonNull Bitmap bitmap, final int samples) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bitmap.getConfig() == Config.HARDWARE) {
+            // Pixels of hardware bitmaps can not be read directly
+            bitmap = bitmap.copy(Config.ARGB_8888, false);
+        }
         final int height = bitmap.getHeight();
         final int width = bitmap.getWidth();
-        int sampleStride = (int) Math.sqrt((height * width) / samples);
-        if (sampleStride < 1) {
-            sampleStride = 1;
+        int sampleStride = getSampleStride(width, height, samples);
+        startSampling(samples);
+
+        if (mTmpRow.length < width) {
+            mTmpRow = new int[width];
         }
+        int[] row = mTmpRow;
+        for (int y = 0; y < height; y += sampleStride) {
+            // Read the full row at once, instead of a separate call for every sample
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            sampleRow(row, 0, width, sampleStride);
+        }
+        return pickBestColor(mBestHue, 0xff000000);
+    }
 
-        // This is an out-param, for getting the hsv values for an rgb
-        float[] hsv = mTmpHsv;
-        Arrays.fill(hsv, 0);
+    private static int getSampleStride(int width, int height, int samples) {
+        int sampleStride = (int) Math.sqrt((height * width) / samples);
+        return sampleStride < 1 ? 1 : sampleStride;
+    }
 
+    private void startSampling(int samples) {
         // First get the best hue, by creating a histogram over 360 hue buckets,
         // where each pixel contributes a score weighted by saturation, value, and alpha.
-        float[] hueScoreHistogram = mTmpHueScoreHistogram;
-        Arrays.fill(hueScoreHistogram, 0);
-        float highScore = -1;
-        int bestHue = -1;
+        Arrays.fill(mTmpHueScoreHistogram, 0);
+        Arrays.fill(mTmpPixels, 0);
+        mSampleLimit = samples;
+        mPixelCount = 0;
+        mBestHue = -1;
+        mHighScore = -1;
+    }
 
-        int[] pixels = mTmpPixels;
-        Arrays.fill(pixels, 0);
-        int pixelCount = 0;
+    private void sampleRow(int[] row, int offset, int width, int sampleStride) {
+        float[] hueScoreHistogram = mTmpHueScoreHistogram;
+        for (int x = 0; x < width; x += sampleStride) {
+            int argb = row[offset + x];
+            int alpha = 0xFF & (argb >> 24);
+            if (alpha < 0x80) {
+                // Drop mostly-transparent pixels.
+                continue;
+            }
+            // Remove the alpha channel.
+            int rgb = argb | 0xFF000000;
+            int r = Color.red(rgb);
+            int g = Color.green(rgb);
+            int b = Color.blue(rgb);
+            int max = Math.max(r, Math.max(g, b));
+            int delta = max - Math.min(r, Math.min(g, b));
+            // Bucket colors by the 360 integer hues.
+            int hue = getHue(r, g, b, max, delta);
+            if (hue < 0 || hue >= HUE_BUCKETS) {
+                // Defensively avoid array bounds violations.
+                continue;
+            }
+            float s = delta == 0 ? 0 : (float) delta / max;
+            float v = BYTE_TO_UNIT[max];
+            float score = s * v;
+            if (mPixelCount < mSampleLimit) {
+                mTmpHues[mPixelCount] = hue;
+                mTmpSvBuckets[mPixelCount] = (int) (s * 100) + (int) (v * 10000);
+                mTmpSvScores[mPixelCount] = score;
+                mTmpPixels[mPixelCount++] = rgb;
+            }
+            hueScoreHistogram[hue] += score;
+            if (hueScoreHistogram[hue] > mHighScore) {
+                mHighScore = hueScoreHistogram[hue];
+                mBestHue = hue;
+            }
+        }
+    }
 
-        for (int y = 0; y < height; y += sampleStride) {
-            for (int x = 0; x < width; x += sampleStride) {
-                int argb = bitmap.getPixel(x, y);
-                int alpha = 0xFF & (argb >> 24);
-                if (alpha < 0x80) {
-                    // Drop mostly-transparent pixels.
-                    continue;
-                }
-                // Remove the alpha channel.
-                int rgb = argb | 0xFF000000;
-                Color.colorToHSV(rgb, hsv);
-                // Bucket colors by the 360 integer hues.
-                int hue = (int) hsv[0];
-                if (hue < 0 || hue >= hueScoreHistogram.length) {
-                    // Defensively avoid array bounds violations.
-                    continue;
-                }
-                if (pixelCount < samples) {
-                    pixels[pixelCount++] = rgb;
-                }
-                float score = hsv[1] * hsv[2];
-                hueScoreHistogram[hue] += score;
-                if (hueScoreHistogram[hue] > highScore) {
+    /**
+     * Fills the palette from the hue histogram of the last sampling pass. After the dominant
+     * color, each entry is picked from the highest scoring hue which is far enough from the hues
+     * already picked.
+     */
+    private void fillPalette(int dominantColor, @NonNull int[] outPalette) {
+        if (outPalette.length == 0) {
+            return;
+        }
+        Arrays.fill(outPalette, Color.TRANSPARENT);
+        outPalette[0] = dominantColor;
+        float[] hueScoreHistogram = mTmpHueScoreHistogram;
+        if (mTmpPickedHues.length < outPalette.length) {
+            mTmpPickedHues = new int[outPalette.length];
+        }
+        int[] pickedHues = mTmpPickedHues;
+        pickedHues[0] = mBestHue;
+        for (int count = 1; count < outPalette.length; count++) {
+            int nextHue = -1;
+            float highScore = 0;
+            // Only consider hues of the stored samples, as the color is picked from those
+            for (int i = 0; i < mPixelCount; i++) {
+                int hue = mTmpHues[i];
+                if (hueScoreHistogram[hue] > highScore
+                        && isDistinctHue(hue, pickedHues, count)) {
                     highScore = hueScoreHistogram[hue];
-                    bestHue = hue;
+                    nextHue = hue;
                 }
             }
+            if (nextHue == -1) {
+                return;
+            }
+            pickedHues[count] = nextHue;
+            outPalette[count] = pickBestColor(nextHue, Color.TRANSPARENT);
         }
+    }
 
-        SparseArray<Float> rgbScores = mTmpRgbScores;
-        rgbScores.clear();
-        int bestColor = 0xff000000;
-        highScore = -1;
+    private static boolean isDistinctHue(int hue, int[] pickedHues, int count) {
+        for (int i = 0; i < count; i++) {
+            int distance = Math.abs(hue - pickedHues[i]);
+            if (Math.min(distance, HUE_BUCKETS - distance) < MIN_PALETTE_HUE_DISTANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int pickBestColor(int targetHue, int defaultColor) {
+        int[] pixels = mTmpPixels;
+        int[] bucketKeys = mTmpBucketKeys;
+        float[] bucketScores = mTmpBucketScores;
+        int bucketCount = 0;
+        int bestColor = defaultColor;
+        float highScore = -1;
         // Go back over the RGB colors that match the winning hue,
         // creating a histogram of weighted s*v scores, for up to 100*100 [s,v] buckets.
         // The highest-scoring RGB color wins.
-        for (int i = 0; i < pixelCount; i++) {
-            int rgb = pixels[i];
-            Color.colorToHSV(rgb, hsv);
-            int hue = (int) hsv[0];
-            if (hue == bestHue) {
-                float s = hsv[1];
-                float v = hsv[2];
-                int bucket = (int) (s * 100) + (int) (v * 10000);
-                // Score by cumulative saturation * value.
-                float score = s * v;
-                Float oldTotal = rgbScores.get(bucket);
-                float newTotal = oldTotal == null ? score : oldTotal + score;
-                rgbScores.put(bucket, newTotal);
-                if (newTotal > highScore) {
-                    highScore = newTotal;
-                    // All the colors in the winning bucket are very similar. Last in wins.
-                    bestColor = rgb;
-                }
+        for (int i = 0; i < mPixelCount; i++) {
+            if (mTmpHues[i] != targetHue) {
+                continue;
+            }
+            int bucket = mTmpSvBuckets[i];
+            int index = 0;
+            while (index < bucketCount && bucketKeys[index] != bucket) {
+                index++;
+            }
+            if (index == bucketCount) {
+                bucketKeys[index] = bucket;
+                bucketScores[index] = 0;
+                bucketCount++;
+            }
+            // Score by cumulative saturation * value.
+            float newTotal = bucketScores[index] + mTmpSvScores[i];
+            bucketScores[index] = newTotal;
+            if (newTotal > highScore) {
+                highScore = newTotal;
+                // All the colors in the winning bucket are very similar. Last in wins.
+                bestColor = pixels[i];
             }
         }
         return bestColor;
     }
+
+    /**
+     * Returns the integer hue of the color, matching {@code (int) hsv[0]} of
+     * {@link Color#colorToHSV} but without going through native code.
+     */
+    private static int getHue(int r, int g, int b, int max, int delta) {
+        if (delta == 0) {
+            // Shade of gray
+            return 0;
+        }
+        float h;
+        if (r == max) {
+            h = (float) (g - b) / delta;
+        } else if (g == max) {
+            h = 2 + (float) (b - r) / delta;
+        } else {
+            h = 4 + (float) (r - g) / delta;
+        }
+        h *= 60;
+        if (h < 0) {
+            h += 360;
+        }
+        return (int) h;
+    }
 }
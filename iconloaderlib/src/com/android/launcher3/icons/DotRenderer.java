@@ -30,6 +30,10 @@ import android.graphics.RectF;
 import android.util.Log;
 import android.view.ViewDebug;
 
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+
 /**
  * Used to draw a notification dot on top of an icon.
  */
@@ -50,16 +54,38 @@ public class DotRenderer {
     private final float[] mRightDotPosition;
     private final float[] mLeftDotPosition;
 
+    private final int mIconSizePx;
+    private final int mPathSize;
+
     private static final int MIN_DOT_SIZE = 1;
+
+    // Renderers shared by all the callers, only kept for the most recently used shape path
+    private static final int MAX_SHARED_RENDERERS = 8;
+    private static final ArrayList<DotRenderer> sSharedRenderers = new ArrayList<>();
+    private static Path sSharedShapePath;
+
     public DotRenderer(int iconSizePx, Path iconShapePath, int pathSize) {
-        int size = Math.round(SIZE_PERCENTAGE * iconSizePx);
-        if (size <= 0) {
-            size = MIN_DOT_SIZE;
+        this(iconSizePx, iconShapePath, pathSize, null);
+    }
+
+    private DotRenderer(int iconSizePx, Path iconShapePath, int pathSize,
+            @Nullable DotRenderer pillSource) {
+        mIconSizePx = iconSizePx;
+        mPathSize = pathSize;
+        if (pillSource != null) {
+            // The pill only depends on the icon size
+            mBackgroundWithShadow = pillSource.mBackgroundWithShadow;
+            mCircleRadius = pillSource.mCircleRadius;
+        } else {
+            int size = Math.round(SIZE_PERCENTAGE * iconSizePx);
+            if (size <= 0) {
+                size = MIN_DOT_SIZE;
+            }
+            ShadowGenerator.Builder builder = new ShadowGenerator.Builder(Color.TRANSPARENT);
+            builder.ambientShadowAlpha = 88;
+            mBackgroundWithShadow = builder.setupBlurForSize(size).createPill(size, size);
+            mCircleRadius = builder.radius;
         }
-        ShadowGenerator.Builder builder = new ShadowGenerator.Builder(Color.TRANSPARENT);
-        builder.ambientShadowAlpha = 88;
-        mBackgroundWithShadow = builder.setupBlurForSize(size).createPill(size, size);
-        mCircleRadius = builder.radius;
 
         mBitmapOffset = -mBackgroundWithShadow.getHeight() * 0.5f; // Same as width.
 
@@ -68,6 +94,43 @@ public class DotRenderer {
         mRightDotPosition = getPathPoint(iconShapePath, pathSize, 1);
     }
 
+    /**
+     * Returns a renderer for the provided parameters, which is shared with all other callers
+     * using the same icon size and the same shape path instance. The path must not be modified
+     * afterwards. Renderers for the previous shape are dropped when a different path is used.
+     */
+    public static DotRenderer getSharedRenderer(int iconSizePx, Path iconShapePath,
+            int pathSize) {
+        synchronized (sSharedRenderers) {
+            DotRenderer pillSource = null;
+            if (sSharedShapePath != iconShapePath) {
+                // Shape changed, only reuse the pill bitmaps
+                for (DotRenderer renderer : sSharedRenderers) {
+                    if (renderer.mIconSizePx == iconSizePx) {
+                        pillSource = renderer;
+                    }
+                }
+                sSharedRenderers.clear();
+                sSharedShapePath = iconShapePath;
+            }
+            for (DotRenderer renderer : sSharedRenderers) {
+                if (renderer.mIconSizePx == iconSizePx && renderer.mPathSize == pathSize) {
+                    return renderer;
+                }
+                if (renderer.mIconSizePx == iconSizePx) {
+                    pillSource = renderer;
+                }
+            }
+            DotRenderer renderer =
+                    new DotRenderer(iconSizePx, iconShapePath, pathSize, pillSource);
+            if (sSharedRenderers.size() >= MAX_SHARED_RENDERERS) {
+                sSharedRenderers.remove(0);
+            }
+            sSharedRenderers.add(renderer);
+            return renderer;
+        }
+    }
+
     private static float[] getPathPoint(Path path, float size, float direction) {
         float halfSize = size / 2;
         // Small delta so that we don't get a zero size triangle
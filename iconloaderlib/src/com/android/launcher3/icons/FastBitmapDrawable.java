@@ -31,6 +31,7 @@ import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.FloatProperty;
+import android.util.SparseArray;
 import android.view.animation.AccelerateInterpolator;
 import android.view.animation.DecelerateInterpolator;
 import android.view.animation.Interpolator;
@@ -52,6 +53,10 @@ public class FastBitmapDrawable extends Drawable implements Drawable.Callback {
 
     public static final int CLICK_FEEDBACK_DURATION = 200;
 
+    // Color filters are immutable, so they are shared across all drawables
+    private static final int MAX_CACHED_FILTERS = 16;
+    private static final SparseArray<ColorFilter> sDisabledFilters = new SparseArray<>();
+
     protected final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
     protected final Bitmap mBitmap;
     protected final int mIconColor;
@@ -312,6 +317,18 @@ public class FastBitmapDrawable extends Drawable implements Drawable.Callback {
     }
 
     private static ColorFilter getDisabledColorFilter(float disabledAlpha) {
+        int key = Float.floatToIntBits(disabledAlpha);
+        synchronized (sDisabledFilters) {
+            ColorFilter filter = sDisabledFilters.get(key);
+            if (filter == null) {
+                filter = createDisabledColorFilter(disabledAlpha);
+                putBounded(sDisabledFilters, key, filter);
+            }
+            return filter;
+        }
+    }
+
+    private static ColorFilter createDisabledColorFilter(float disabledAlpha) {
         ColorMatrix tempBrightnessMatrix = new ColorMatrix();
         ColorMatrix tempFilterMatrix = new ColorMatrix();
 
@@ -330,6 +347,17 @@ public class FastBitmapDrawable extends Drawable implements Drawable.Callback {
         return new ColorMatrixColorFilter(tempFilterMatrix);
     }
 
+    /**
+     * Adds the filter to a filter cache, clearing the cache first if it is too large. Should be
+     * called while holding a lock on the {@param cache}.
+     */
+    static void putBounded(SparseArray<ColorFilter> cache, int key, ColorFilter filter) {
+        if (cache.size() >= MAX_CACHED_FILTERS) {
+            cache.clear();
+        }
+        cache.put(key, filter);
+    }
+
     protected static final int getDisabledColor(int color) {
         int component = (Color.red(color) + Color.green(color) + Color.blue(color)) / 3;
         float scale = 1 - DISABLED_BRIGHTNESS;
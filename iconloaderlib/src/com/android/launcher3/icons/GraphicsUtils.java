@@ -36,8 +36,14 @@ public class GraphicsUtils {
 
     private static final String TAG = "GraphicsUtils";
 
+    // Buffers larger than this are not kept around between flattenBitmap calls
+    private static final int MAX_REUSED_BUFFER_SIZE = 1 << 20;
+
     public static Runnable sOnNewBitmapRunnable = () -> { };
 
+    private static final ThreadLocal<ReusableOutputStream> sFlattenBuffer =
+            ThreadLocal.withInitial(ReusableOutputStream::new);
+
     /**
      * Set the alpha component of {@code color} to be {@code alpha}. Unlike the support lib version,
      * it bounds the alpha in valid range instead of throwing an exception to allow for safer
@@ -57,15 +63,18 @@ public class GraphicsUtils {
      * Compresses the bitmap to a byte array for serialization.
      */
     public static byte[] flattenBitmap(Bitmap bitmap) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream(getExpectedBitmapSize(bitmap));
+        // Compress into a buffer reused across calls, so that only the final array is allocated
+        ReusableOutputStream out = sFlattenBuffer.get();
+        out.prepare(getExpectedBitmapSize(bitmap));
         try {
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
             out.flush();
-            out.close();
             return out.toByteArray();
         } catch (IOException e) {
             Log.w(TAG, "Could not write bitmap");
             return null;
+        } finally {
+            out.release();
         }
     }
 
@@ -124,4 +133,28 @@ public class GraphicsUtils {
         ta.recycle();
         return value;
     }
+
+    /**
+     * {@link ByteArrayOutputStream} which keeps its buffer when reset
+     */
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+
+        ReusableOutputStream() {
+            super(0);
+        }
+
+        void prepare(int expectedSize) {
+            reset();
+            if (buf.length < expectedSize) {
+                buf = new byte[expectedSize];
+            }
+        }
+
+        void release() {
+            reset();
+            if (buf.length > MAX_REUSED_BUFFER_SIZE) {
+                buf = new byte[0];
+            }
+        }
+    }
 }
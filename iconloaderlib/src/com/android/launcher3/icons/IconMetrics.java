@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import static com.android.launcher3.icons.BaseIconFactory.MODE_ALPHA;
+import static com.android.launcher3.icons.BaseIconFactory.MODE_DEFAULT;
+import static com.android.launcher3.icons.BaseIconFactory.MODE_HARDWARE;
+import static com.android.launcher3.icons.BaseIconFactory.MODE_HARDWARE_WITH_SHADOW;
+import static com.android.launcher3.icons.BaseIconFactory.MODE_WITH_SHADOW;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.android.launcher3.icons.BaseIconFactory.BitmapGenerationMode;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters and latency histograms for the icon pipeline. Metrics are disabled by
+ * default, in which case recording only checks a static flag.
+ *
+ * Timings are recorded as:
+ * <pre>
+ *     long start = IconMetrics.startTimer();
+ *     ...
+ *     IconMetrics.recordDecode(start);
+ * </pre>
+ */
+public final class IconMetrics {
+
+    private static final String[] MODE_NAMES = new String[5];
+    static {
+        MODE_NAMES[MODE_DEFAULT] = "default";
+        MODE_NAMES[MODE_ALPHA] = "alpha";
+        MODE_NAMES[MODE_WITH_SHADOW] = "with_shadow";
+        MODE_NAMES[MODE_HARDWARE] = "hardware";
+        MODE_NAMES[MODE_HARDWARE_WITH_SHADOW] = "hardware_with_shadow";
+    }
+
+    private static volatile boolean sEnabled = false;
+
+    private static final LongAdder sMemoryHits = new LongAdder();
+    private static final LongAdder sDbHits = new LongAdder();
+    private static final LongAdder sDbMisses = new LongAdder();
+    private static final LongAdder sFallbackLoads = new LongAdder();
+
+    private static final Histogram sDecodeTimes = new Histogram();
+    private static final Histogram[] sRenderTimes = new Histogram[MODE_NAMES.length];
+    static {
+        for (int i = 0; i < sRenderTimes.length; i++) {
+            sRenderTimes[i] = new Histogram();
+        }
+    }
+
+    private IconMetrics() { }
+
+    /**
+     * Enables or disables recording. Disabling does not clear the metrics already recorded.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the start time to be passed to one of the record methods, or 0 if the metrics
+     * are disabled
+     */
+    public static long startTimer() {
+        return sEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Called when an icon is found in the in-memory cache
+     */
+    public static void recordMemoryHit() {
+        if (sEnabled) sMemoryHits.increment();
+    }
+
+    /**
+     * Called when an icon is loaded from the icon database
+     */
+    public static void recordDbHit() {
+        if (sEnabled) sDbHits.increment();
+    }
+
+    /**
+     * Called when an icon could not be loaded from the icon database
+     */
+    public static void recordDbMiss() {
+        if (sEnabled) sDbMisses.increment();
+    }
+
+    /**
+     * Called when an icon is loaded without the icon database, from the app or a default icon
+     */
+    public static void recordFallbackLoad() {
+        if (sEnabled) sFallbackLoads.increment();
+    }
+
+    /**
+     * Records the time taken to decode a persisted icon, from a time returned by
+     * {@link #startTimer()}
+     */
+    public static void recordDecode(long startNanos) {
+        if (startNanos != 0) {
+            sDecodeTimes.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    /**
+     * Records the time taken to render an icon bitmap, from a time returned by
+     * {@link #startTimer()}
+     */
+    public static void recordRender(@BitmapGenerationMode int mode, long startNanos) {
+        if (startNanos != 0 && mode >= 0 && mode < sRenderTimes.length) {
+            sRenderTimes[mode].record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    public static long getMemoryHitCount() {
+        return sMemoryHits.sum();
+    }
+
+    public static long getDbHitCount() {
+        return sDbHits.sum();
+    }
+
+    public static long getDbMissCount() {
+        return sDbMisses.sum();
+    }
+
+    public static long getFallbackLoadCount() {
+        return sFallbackLoads.sum();
+    }
+
+    @NonNull
+    public static Histogram getDecodeTimes() {
+        return sDecodeTimes;
+    }
+
+    @NonNull
+    public static Histogram getRenderTimes(@BitmapGenerationMode int mode) {
+        return sRenderTimes[mode];
+    }
+
+    /**
+     * Clears all the recorded metrics
+     */
+    public static void reset() {
+        sMemoryHits.reset();
+        sDbHits.reset();
+        sDbMisses.reset();
+        sFallbackLoads.reset();
+        sDecodeTimes.reset();
+        for (Histogram histogram : sRenderTimes) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Prints the recorded metrics
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        writer.println("IconMetrics: enabled=" + sEnabled);
+        writer.println("  memoryHits=" + getMemoryHitCount()
+                + " dbHits=" + getDbHitCount()
+                + " dbMisses=" + getDbMissCount()
+                + " fallbackLoads=" + getFallbackLoadCount());
+        sDecodeTimes.dump("  decode", writer);
+        for (int i = 0; i < sRenderTimes.length; i++) {
+            sRenderTimes[i].dump("  render[" + MODE_NAMES[i] + "]", writer);
+        }
+    }
+
+    /**
+     * Lock free latency histogram, with power of two buckets in microseconds. Percentiles are
+     * reported as the upper bound of the bucket they fall in.
+     */
+    public static final class Histogram {
+
+        // The last bucket holds everything above 2^(BUCKET_COUNT - 2) us, about 8s
+        private static final int BUCKET_COUNT = 25;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder mCount = new LongAdder();
+        private final LongAdder mTotalNanos = new LongAdder();
+
+        Histogram() { }
+
+        void record(long durationNanos) {
+            long micros = Math.max(durationNanos / 1000, 0);
+            int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+            mCount.increment();
+            mTotalNanos.add(durationNanos);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.reset();
+            mTotalNanos.reset();
+        }
+
+        public long getCount() {
+            return mCount.sum();
+        }
+
+        /**
+         * Returns the average duration in microseconds, or 0 if nothing was recorded
+         */
+        public long getAverageMicros() {
+            long count = mCount.sum();
+            return count == 0 ? 0 : mTotalNanos.sum() / count / 1000;
+        }
+
+        /**
+         * Returns an upper bound of the provided percentile, between 0 and 100, in microseconds,
+         * or 0 if nothing was recorded. Returns {@link Long#MAX_VALUE} if the percentile is in
+         * the last, unbounded, bucket.
+         */
+        public long getPercentileMicros(float percentile) {
+            long[] buckets = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+                total += buckets[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max((long) Math.ceil(total * percentile / 100), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    // Bucket i holds durations below 2^i us
+                    return 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            long count = getCount();
+            if (count == 0) {
+                writer.println(prefix + ": count=0");
+                return;
+            }
+            writer.println(prefix + ": count=" + count
+                    + " avg=" + getAverageMicros() + "us"
+                    + " p50<=" + formatMicros(getPercentileMicros(50))
+                    + " p90<=" + formatMicros(getPercentileMicros(90))
+                    + " p99<=" + formatMicros(getPercentileMicros(99)));
+        }
+
+        private static String formatMicros(long micros) {
+            return micros == Long.MAX_VALUE ? "inf" : micros + "us";
+        }
+    }
+}
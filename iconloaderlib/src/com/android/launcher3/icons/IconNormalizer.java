@@ -30,12 +30,14 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region;
+import android.graphics.RegionIterator;
 import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -61,6 +63,11 @@ public class IconNormalizer {
     private static final float BOUND_RATIO_MARGIN = .05f;
     private static final float PIXEL_DIFF_PERCENTAGE_THRESHOLD = 0.005f;
     private static final float SCALE_NOT_INITIALIZED = 0;
+    // The row-extent based shape estimate is trusted when it is this many times away from the
+    // threshold, otherwise we fall back to the pixel based XOR check.
+    private static final float SHAPE_ESTIMATE_CONFIDENCE_FACTOR = 2;
+    // Error allowed when comparing mask paths, which are in [0,1]x[0,1] bounds
+    private static final float MASK_APPROXIMATION_TOLERANCE = 0.001f;
 
     // Ratio of the diameter of an normalized circular icon to the actual icon size.
     public static final float ICON_VISIBLE_AREA_FACTOR = 0.92f;
@@ -84,6 +91,25 @@ public class IconNormalizer {
     private final Path mShapePath;
     private final Matrix mMatrix;
 
+    // Borders before being converted to a convex hull, used for shape detection
+    private final float[] mRawLeftBorder;
+    private final float[] mRawRightBorder;
+    private int mVisiblePixelCount;
+
+    // for each y, the leftmost and rightmost x of the mask path fitted to the icon bounds. This
+    // is cached for the last mask and size, as the same mask is used for all icons. The mask is
+    // compared by its approximation, as the path object can be modified in place.
+    private final int[] mMaskLeftBorder;
+    private final int[] mMaskRightBorder;
+    private final Region mMaskRegion;
+    private final Region mMaskClip;
+    private final Rect mTmpRect;
+    @Nullable
+    private float[] mMaskApproximation;
+    private int mMaskWidth;
+    private int mMaskHeight;
+    private int mMaskArea;
+
     /** package private **/
     IconNormalizer(Context context, int iconBitmapSize, boolean shapeDetection) {
         // Use twice the icon size as maximum size to avoid scaling down twice.
@@ -93,6 +119,13 @@ public class IconNormalizer {
         mPixels = new byte[mMaxSize * mMaxSize];
         mLeftBorder = new float[mMaxSize];
         mRightBorder = new float[mMaxSize];
+        mRawLeftBorder = new float[mMaxSize];
+        mRawRightBorder = new float[mMaxSize];
+        mMaskLeftBorder = new int[mMaxSize];
+        mMaskRightBorder = new int[mMaxSize];
+        mMaskRegion = new Region();
+        mMaskClip = new Region();
+        mTmpRect = new Rect();
         mBounds = new Rect();
         mAdaptiveIconBounds = new RectF();
 
@@ -173,6 +206,19 @@ public class IconNormalizer {
         }
 
         // Condition 2:
+        // Compare the rows of the icon with the rows of the mask fitted to the same bounds. This
+        // avoids rasterizing the path for every icon when the result is clear enough.
+        float estimate = estimateShapeDifference(maskPath);
+        if (estimate * SHAPE_ESTIMATE_CONFIDENCE_FACTOR < PIXEL_DIFF_PERCENTAGE_THRESHOLD) {
+            return true;
+        } else if (estimate > PIXEL_DIFF_PERCENTAGE_THRESHOLD * SHAPE_ESTIMATE_CONFIDENCE_FACTOR) {
+            if (DEBUG) {
+                Log.d(TAG, "Not same as mask shape because of row difference " + estimate);
+            }
+            return false;
+        }
+
+        // Condition 3:
         // Actual icon (white) and the fitted shape (e.g., circle)(red) XOR operation
         // should generate transparent image, if the actual icon is equivalent to the shape.
 
@@ -192,6 +238,88 @@ public class IconNormalizer {
         return isTransparentBitmap();
     }
 
+    /**
+     * Returns the approximate fraction of pixels which differ between the icon and the mask
+     * fitted to the icon bounds, using the per-row borders of both.
+     */
+    private float estimateShapeDifference(Path maskPath) {
+        // The right and bottom of mBounds are inclusive
+        int width = mBounds.width() + 1;
+        int height = mBounds.height() + 1;
+        updateMaskBorders(maskPath, width, height);
+
+        // Pixels this close to the mask outline are ignored, same as the outline stroke
+        float tolerance = mPaintMaskShapeOutline.getStrokeWidth() / 2;
+        float diff = 0;
+        int iconSpan = 0;
+        int maskSpan = 0;
+        for (int row = 0; row < height; row++) {
+            int y = mBounds.top + row;
+            int iconLeft = (int) mRawLeftBorder[y];
+            int iconRight = (int) mRawRightBorder[y];
+            int maskLeft = mMaskLeftBorder[row];
+            int maskRight = mMaskRightBorder[row];
+            if (iconLeft != -1) {
+                iconSpan += iconRight - iconLeft + 1;
+            }
+            if (maskLeft != -1) {
+                maskSpan += maskRight - maskLeft + 1;
+                maskLeft += mBounds.left;
+                maskRight += mBounds.left;
+            }
+
+            if (iconLeft == -1 && maskLeft == -1) {
+                continue;
+            } else if (iconLeft == -1) {
+                diff += maskRight - maskLeft + 1;
+            } else if (maskLeft == -1) {
+                diff += iconRight - iconLeft + 1;
+            } else {
+                diff += Math.max(0, Math.abs(iconLeft - maskLeft) - tolerance)
+                        + Math.max(0, Math.abs(iconRight - maskRight) - tolerance);
+            }
+        }
+        // Account for any transparent holes within the rows
+        diff += Math.abs((iconSpan - mVisiblePixelCount) - (maskSpan - mMaskArea));
+        return diff / (width * height);
+    }
+
+    /**
+     * Computes the row borders of {@param maskPath} scaled to {@param width}x{@param height},
+     * unless they are already computed for the same mask and size.
+     */
+    private void updateMaskBorders(Path maskPath, int width, int height) {
+        float[] approximation = maskPath.approximate(MASK_APPROXIMATION_TOLERANCE);
+        if (width == mMaskWidth && height == mMaskHeight
+                && Arrays.equals(approximation, mMaskApproximation)) {
+            return;
+        }
+        mMatrix.reset();
+        mMatrix.setScale(width, height);
+        maskPath.transform(mMatrix, mShapePath);
+        mMaskClip.set(0, 0, width, height);
+        mMaskRegion.setPath(mShapePath, mMaskClip);
+
+        Arrays.fill(mMaskLeftBorder, 0, height, -1);
+        Arrays.fill(mMaskRightBorder, 0, height, -1);
+        int area = 0;
+        RegionIterator itr = new RegionIterator(mMaskRegion);
+        while (itr.next(mTmpRect)) {
+            area += mTmpRect.width() * mTmpRect.height();
+            for (int y = mTmpRect.top; y < mTmpRect.bottom; y++) {
+                if (mMaskLeftBorder[y] == -1 || mTmpRect.left < mMaskLeftBorder[y]) {
+                    mMaskLeftBorder[y] = mTmpRect.left;
+                }
+                mMaskRightBorder[y] = Math.max(mMaskRightBorder[y], mTmpRect.right - 1);
+            }
+        }
+
+        mMaskArea = area;
+        mMaskApproximation = approximation;
+        mMaskWidth = width;
+        mMaskHeight = height;
+    }
+
     /**
      * Used to determine if certain the bitmap is transparent.
      */
@@ -282,6 +410,7 @@ public class IconNormalizer {
         int rowSizeDiff = mMaxSize - width;
         // first and last position for any row.
         int firstX, lastX;
+        int visiblePixels = 0;
 
         for (int y = 0; y < height; y++) {
             firstX = lastX = -1;
@@ -291,6 +420,7 @@ public class IconNormalizer {
                         firstX = x;
                     }
                     lastX = x;
+                    visiblePixels++;
                 }
                 index++;
             }
@@ -316,6 +446,14 @@ public class IconNormalizer {
             return 1;
         }
 
+        boolean detectShape = outMaskShape != null && mEnableShapeDetection
+                && outMaskShape.length > 0;
+        if (detectShape) {
+            System.arraycopy(mLeftBorder, 0, mRawLeftBorder, 0, height);
+            System.arraycopy(mRightBorder, 0, mRawRightBorder, 0, height);
+            mVisiblePixelCount = visiblePixels;
+        }
+
         convertToConvexArray(mLeftBorder, 1, topY, bottomY);
         convertToConvexArray(mRightBorder, -1, topY, bottomY);
 
@@ -339,7 +477,7 @@ public class IconNormalizer {
                     1 - ((float) mBounds.right) / width,
                     1 - ((float) mBounds.bottom) / height);
         }
-        if (outMaskShape != null && mEnableShapeDetection && outMaskShape.length > 0) {
+        if (detectShape) {
             outMaskShape[0] = isShape(path);
         }
         // Area of the rectangle required to fit the convex hull
@@ -40,11 +40,15 @@ import android.graphics.drawable.InsetDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.PatternMatcher;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -52,7 +56,11 @@ import androidx.core.os.BuildCompat;
 
 import com.android.launcher3.util.SafeCloseable;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Supplier;
 
 /**
@@ -61,7 +69,7 @@ import java.util.function.Supplier;
 public class IconProvider {
 
     private final String ACTION_OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
-    private static final int CONFIG_ICON_MASK_RES_ID = Resources.getSystem().getIdentifier(
+    static final int CONFIG_ICON_MASK_RES_ID = Resources.getSystem().getIdentifier(
             "config_icon_mask", "string", "android");
 
     private static final String TAG = "IconProvider";
@@ -72,6 +80,10 @@ public class IconProvider {
 
     private static final String SYSTEM_STATE_SEPARATOR = " ";
 
+    // Icon changes received within this delay of each other are dispatched together
+    private static final long CHANGE_DISPATCH_DELAY_MS = 500;
+    private static final long MAX_CHANGE_DISPATCH_DELAY_MS = 2000;
+
     protected final Context mContext;
     private final ComponentName mCalendar;
     private final ComponentName mClock;
@@ -94,11 +106,54 @@ public class IconProvider {
         }
     }
 
+    /**
+     * Returns the system state of the package after the next day change, or null if the icon of
+     * the package does not change with the day.
+     * @see #getSystemStateForPackage(String, String)
+     */
+    @Nullable
+    public String getNextDaySystemStateForPackage(String systemState, String packageName) {
+        if (mCalendar != null && mCalendar.getPackageName().equals(packageName)) {
+            return systemState + SYSTEM_STATE_SEPARATOR + getDay(1);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the icon that the activity will have after the next day change, or returns null if
+     * its icon does not change with the day. This allows rendering the icon ahead of time.
+     */
+    @Nullable
+    public Drawable getNextDayIcon(LauncherActivityInfo info, int iconDpi) {
+        String packageName = info.getApplicationInfo().packageName;
+        if (mCalendar == null || !mCalendar.getPackageName().equals(packageName)) {
+            return null;
+        }
+        return loadCalendarDrawable(iconDpi, getThemeDataForPackage(packageName), 1);
+    }
+
+    /**
+     * Returns the wall clock time at which the day following the one of {@param time} starts,
+     * in the current time zone
+     */
+    public static long getNextDayStartTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.add(Calendar.DAY_OF_YEAR, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
     /**
      * Loads the icon for the provided LauncherActivityInfo
      */
     public Drawable getIcon(LauncherActivityInfo info, int iconDpi) {
-        return getIconWithOverrides(info.getApplicationInfo().packageName, iconDpi,
+        String packageName = info.getApplicationInfo().packageName;
+        return getIconWithOverrides(packageName, iconDpi, getThemeDataForPackage(packageName),
                 () -> info.getIcon(iconDpi));
     }
 
@@ -113,18 +168,47 @@ public class IconProvider {
      * Loads the icon for the provided activity info
      */
     public Drawable getIcon(ActivityInfo info, int iconDpi) {
-        return getIconWithOverrides(info.applicationInfo.packageName, iconDpi,
-                () -> loadActivityInfoIcon(info, iconDpi));
+        String packageName = info.applicationInfo.packageName;
+        return getIconWithOverrides(packageName, iconDpi, getThemeDataForPackage(packageName),
+                () -> loadActivityInfoIcon(info, iconDpi, getResourcesOrNull(info, iconDpi)));
+    }
+
+    /**
+     * Loads the icons for all the provided activities, returned in the same order. Activities
+     * are grouped by package, so that the theme data and the package resources are only
+     * resolved once per package.
+     */
+    public List<Drawable> getIcons(List<ActivityInfo> infos, int iconDpi) {
+        int count = infos.size();
+        Drawable[] icons = new Drawable[count];
+        boolean[] loaded = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            if (loaded[i]) {
+                continue;
+            }
+            ActivityInfo first = infos.get(i);
+            String packageName = first.applicationInfo.packageName;
+            ThemeData td = getThemeDataForPackage(packageName);
+            Resources resources = getResourcesOrNull(first, iconDpi);
+            for (int j = i; j < count; j++) {
+                ActivityInfo info = infos.get(j);
+                if (loaded[j] || !packageName.equals(info.applicationInfo.packageName)) {
+                    continue;
+                }
+                icons[j] = getIconWithOverrides(packageName, iconDpi, td,
+                        () -> loadActivityInfoIcon(info, iconDpi, resources));
+                loaded[j] = true;
+            }
+        }
+        return Arrays.asList(icons);
     }
 
     @TargetApi(Build.VERSION_CODES.TIRAMISU)
     private Drawable getIconWithOverrides(String packageName, int iconDpi,
-            Supplier<Drawable> fallback) {
-        ThemeData td = getThemeDataForPackage(packageName);
-
+            @Nullable ThemeData td, Supplier<Drawable> fallback) {
         Drawable icon = null;
         if (mCalendar != null && mCalendar.getPackageName().equals(packageName)) {
-            icon = loadCalendarDrawable(iconDpi, td);
+            icon = loadCalendarDrawable(iconDpi, td, 0);
         } else if (mClock != null && mClock.getPackageName().equals(packageName)) {
             icon = ClockDrawableWrapper.forPackage(mContext, mClock.getPackageName(), iconDpi, td);
         }
@@ -145,16 +229,32 @@ public class IconProvider {
         return null;
     }
 
-    private Drawable loadActivityInfoIcon(ActivityInfo ai, int density) {
+    /**
+     * Returns the resources used for loading the preferred density icon of the activity, or
+     * null if the default icon should be used
+     */
+    @Nullable
+    private Resources getResourcesOrNull(ActivityInfo ai, int density) {
+        if (density == 0) {
+            return null;
+        }
+        try {
+            return PackageResourcesCache.getResources(
+                    mContext.getPackageManager(), ai.applicationInfo);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private Drawable loadActivityInfoIcon(ActivityInfo ai, int density,
+            @Nullable Resources resources) {
         final int iconRes = ai.getIconResource();
         Drawable icon = null;
         // Get the preferred density icon from the app's resources
-        if (density != 0 && iconRes != 0) {
+        if (resources != null && iconRes != 0) {
             try {
-                final Resources resources = mContext.getPackageManager()
-                        .getResourcesForApplication(ai.applicationInfo);
                 icon = resources.getDrawableForDensity(iconRes, density);
-            } catch (NameNotFoundException | Resources.NotFoundException exc) { }
+            } catch (Resources.NotFoundException exc) { }
         }
         // Get the default density icon
         if (icon == null) {
@@ -164,15 +264,17 @@ public class IconProvider {
     }
 
     @TargetApi(Build.VERSION_CODES.TIRAMISU)
-    private Drawable loadCalendarDrawable(int iconDpi, @Nullable ThemeData td) {
+    private Drawable loadCalendarDrawable(int iconDpi, @Nullable ThemeData td, int dayOffset) {
+        int day = getDay(dayOffset);
         PackageManager pm = mContext.getPackageManager();
         try {
             final Bundle metadata = pm.getActivityInfo(
                     mCalendar,
                     PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_META_DATA)
                     .metaData;
-            final Resources resources = pm.getResourcesForApplication(mCalendar.getPackageName());
-            final int id = getDynamicIconId(metadata, resources);
+            final Resources resources =
+                    PackageResourcesCache.getResources(pm, mCalendar.getPackageName());
+            final int id = getDynamicIconId(metadata, resources, day);
             if (id != ID_NULL) {
                 if (DEBUG) Log.d(TAG, "Got icon #" + id);
                 Drawable drawable = resources.getDrawableForDensity(id, iconDpi, null /* theme */);
@@ -183,7 +285,7 @@ public class IconProvider {
                     }
                     if ("array".equals(td.mResources.getResourceTypeName(td.mResID))) {
                         TypedArray ta = td.mResources.obtainTypedArray(td.mResID);
-                        int monoId = ta.getResourceId(IconProvider.getDay(), ID_NULL);
+                        int monoId = ta.getResourceId(day, ID_NULL);
                         ta.recycle();
                         return monoId == ID_NULL ? drawable
                                 : new AdaptiveIconDrawable(aid.getBackground(), aid.getForeground(),
@@ -204,9 +306,10 @@ public class IconProvider {
     /**
      * @param metadata metadata of the default activity of Calendar
      * @param resources from the Calendar package
-     * @return the resource id for today's Calendar icon; 0 if resources cannot be found.
+     * @param day the zero-indexed day of the month
+     * @return the resource id for the day's Calendar icon; 0 if resources cannot be found.
      */
-    private int getDynamicIconId(Bundle metadata, Resources resources) {
+    private int getDynamicIconId(Bundle metadata, Resources resources, int day) {
         if (metadata == null) {
             return ID_NULL;
         }
@@ -216,7 +319,7 @@ public class IconProvider {
             return ID_NULL;
         }
         try {
-            return resources.obtainTypedArray(arrayId).getResourceId(getDay(), ID_NULL);
+            return resources.obtainTypedArray(arrayId).getResourceId(day, ID_NULL);
         } catch (Resources.NotFoundException e) {
             if (DEBUG) {
                 Log.d(TAG, "package defines '" + key + "' but corresponding array not found");
@@ -229,7 +332,18 @@ public class IconProvider {
      * @return Today's day of the month, zero-indexed.
      */
     private static int getDay() {
-        return Calendar.getInstance().get(Calendar.DAY_OF_MONTH) - 1;
+        return getDay(0);
+    }
+
+    /**
+     * @return The day of the month after {@param dayOffset} days from today, zero-indexed.
+     */
+    private static int getDay(int dayOffset) {
+        Calendar calendar = Calendar.getInstance();
+        if (dayOffset != 0) {
+            calendar.add(Calendar.DAY_OF_YEAR, dayOffset);
+        }
+        return calendar.get(Calendar.DAY_OF_MONTH) - 1;
     }
 
     private static ComponentName parseComponentOrNull(Context context, int resId) {
@@ -277,11 +391,22 @@ public class IconProvider {
     private class IconChangeReceiver extends BroadcastReceiver implements SafeCloseable {
 
         private final IconChangeListener mCallback;
+        private final Handler mHandler;
+        private final Runnable mDispatchRunnable = this::dispatchPendingChanges;
         private String mIconState;
+        // Day for which the calendar icon was last reported
+        private int mCalendarDay;
+
+        // App icon changes not yet dispatched to the callback
+        private final ArrayMap<UserHandle, ArraySet<String>> mPendingChanges = new ArrayMap<>();
+        // Time of the first change not yet dispatched
+        private long mFirstPendingTime;
 
         IconChangeReceiver(IconChangeListener callback, Handler handler) {
             mCallback = callback;
+            mHandler = handler != null ? handler : new Handler(Looper.getMainLooper());
             mIconState = getSystemIconState();
+            mCalendarDay = getDay();
 
 
             IntentFilter packageFilter = new IntentFilter(ACTION_OVERLAY_CHANGED);
@@ -304,22 +429,31 @@ public class IconProvider {
             switch (intent.getAction()) {
                 case ACTION_TIMEZONE_CHANGED:
                     if (mClock != null) {
-                        mCallback.onAppIconChanged(mClock.getPackageName(), Process.myUserHandle());
+                        ClockDrawableWrapper.onTimeChanged();
+                        addPendingChange(mClock.getPackageName(), Process.myUserHandle());
                     }
-                    // follow through
+                    // follow through, as the day can also change with the timezone
                 case ACTION_DATE_CHANGED:
-                case ACTION_TIME_CHANGED:
-                    if (mCalendar != null) {
+                case ACTION_TIME_CHANGED: {
+                    // The calendar icon only changes with the day, which is also its system state
+                    int day = getDay();
+                    if (mCalendar != null && day != mCalendarDay) {
+                        mCalendarDay = day;
                         for (UserHandle user
                                 : context.getSystemService(UserManager.class).getUserProfiles()) {
-                            mCallback.onAppIconChanged(mCalendar.getPackageName(), user);
+                            addPendingChange(mCalendar.getPackageName(), user);
                         }
                     }
                     break;
+                }
                 case ACTION_OVERLAY_CHANGED: {
                     String newState = getSystemIconState();
                     if (!mIconState.equals(newState)) {
                         mIconState = newState;
+                        // All the icons are reloaded for the new state, including the pending
+                        // app icon changes
+                        mPendingChanges.clear();
+                        mHandler.removeCallbacks(mDispatchRunnable);
                         mCallback.onSystemIconStateChanged(mIconState);
                     }
                     break;
@@ -327,9 +461,42 @@ public class IconProvider {
             }
         }
 
+        /**
+         * Adds a change to be dispatched along with any other change received within
+         * {@link #CHANGE_DISPATCH_DELAY_MS}, but no later than
+         * {@link #MAX_CHANGE_DISPATCH_DELAY_MS} after the first pending change.
+         */
+        private void addPendingChange(String packageName, UserHandle user) {
+            long now = SystemClock.uptimeMillis();
+            if (mPendingChanges.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            ArraySet<String> packages = mPendingChanges.get(user);
+            if (packages == null) {
+                packages = new ArraySet<>();
+                mPendingChanges.put(user, packages);
+            }
+            packages.add(packageName);
+
+            mHandler.removeCallbacks(mDispatchRunnable);
+            mHandler.postAtTime(mDispatchRunnable, Math.min(now + CHANGE_DISPATCH_DELAY_MS,
+                    mFirstPendingTime + MAX_CHANGE_DISPATCH_DELAY_MS));
+        }
+
+        private void dispatchPendingChanges() {
+            if (mPendingChanges.isEmpty()) {
+                return;
+            }
+            ArrayMap<UserHandle, ArraySet<String>> changes = new ArrayMap<>(mPendingChanges);
+            mPendingChanges.clear();
+            mCallback.onAppIconsChanged(changes);
+        }
+
         @Override
         public void close() {
             mContext.unregisterReceiver(this);
+            mHandler.removeCallbacks(mDispatchRunnable);
+            mPendingChanges.clear();
         }
     }
 
@@ -343,6 +510,18 @@ public class IconProvider {
          */
         void onAppIconChanged(String packageName, UserHandle user);
 
+        /**
+         * Called with the app icon changes received together, mapped by the user. By default
+         * calls {@link #onAppIconChanged(String, UserHandle)} for every change.
+         */
+        default void onAppIconsChanged(Map<UserHandle, ? extends Set<String>> changes) {
+            for (Map.Entry<UserHandle, ? extends Set<String>> entry : changes.entrySet()) {
+                for (String packageName : entry.getValue()) {
+                    onAppIconChanged(packageName, entry.getKey());
+                }
+            }
+        }
+
         /**
          * Called when the global icon state changed, which can typically affect all icons
          */
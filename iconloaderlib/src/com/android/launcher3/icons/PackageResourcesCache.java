@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.os.UserHandle;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Process wide cache of the {@link Resources} of other packages used for loading icons, so that
+ * loading multiple icons from the same package only opens its resources once.
+ */
+public final class PackageResourcesCache {
+
+    private static final int MAX_CACHED_PACKAGES = 8;
+
+    // Access ordered, so that the least recently used package is dropped first
+    private static final LinkedHashMap<Pair<String, UserHandle>, CachedResources> sCache =
+            new LinkedHashMap<Pair<String, UserHandle>, CachedResources>(
+                    MAX_CACHED_PACKAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Pair<String, UserHandle>, CachedResources> eldest) {
+                    return size() > MAX_CACHED_PACKAGES;
+                }
+            };
+
+    private PackageResourcesCache() { }
+
+    /**
+     * Returns the resources for the provided package in the current user
+     * @see PackageManager#getResourcesForApplication(String)
+     */
+    @NonNull
+    public static Resources getResources(@NonNull PackageManager pm, @NonNull String packageName)
+            throws NameNotFoundException {
+        return getResources(pm,
+                pm.getApplicationInfo(packageName, PackageManager.GET_SHARED_LIBRARY_FILES));
+    }
+
+    /**
+     * Returns the resources for the provided application
+     * @see PackageManager#getResourcesForApplication(ApplicationInfo)
+     */
+    @NonNull
+    public static Resources getResources(@NonNull PackageManager pm,
+            @NonNull ApplicationInfo appInfo) throws NameNotFoundException {
+        Pair<String, UserHandle> key =
+                Pair.create(appInfo.packageName, UserHandle.getUserHandleForUid(appInfo.uid));
+        synchronized (sCache) {
+            CachedResources cached = sCache.get(key);
+            if (cached != null && cached.isValidFor(appInfo)) {
+                return cached.resources;
+            }
+        }
+        Resources resources = pm.getResourcesForApplication(appInfo);
+        synchronized (sCache) {
+            sCache.put(key, new CachedResources(appInfo, resources));
+        }
+        return resources;
+    }
+
+    /**
+     * Removes any resources cached for the package, should be called when the package changes
+     */
+    public static void invalidate(@NonNull String packageName, @NonNull UserHandle user) {
+        synchronized (sCache) {
+            sCache.remove(Pair.create(packageName, user));
+        }
+    }
+
+    /**
+     * Removes all the cached resources
+     */
+    public static void clear() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static class CachedResources {
+
+        // The install location changes with every update of the package, which is used as its
+        // version, since the version code is not available on ApplicationInfo
+        final String sourceDir;
+        final String[] resourceDirs;
+        final Resources resources;
+
+        CachedResources(ApplicationInfo appInfo, Resources resources) {
+            this.sourceDir = appInfo.sourceDir;
+            this.resourceDirs = appInfo.resourceDirs;
+            this.resources = resources;
+        }
+
+        boolean isValidFor(ApplicationInfo appInfo) {
+            return Objects.equals(sourceDir, appInfo.sourceDir)
+                    && Arrays.equals(resourceDirs, appInfo.resourceDirs);
+        }
+    }
+}
@@ -15,8 +15,11 @@
  */
 package com.android.launcher3.icons;
 
-import android.animation.Animator;
-import android.animation.AnimatorListenerAdapter;
+import static android.content.res.Resources.ID_NULL;
+
+import static com.android.launcher3.icons.IconProvider.CONFIG_ICON_MASK_RES_ID;
+
+import android.animation.TimeAnimator;
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Canvas;
@@ -26,25 +29,52 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.util.SparseArray;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.Interpolator;
 
 import androidx.core.graphics.ColorUtils;
 
+import java.util.ArrayList;
+
 /**
  * Subclass which draws a placeholder icon when the actual icon is not yet loaded
  */
 public class PlaceHolderIconDrawable extends FastBitmapDrawable {
 
+    private static final long ICON_UPDATE_DURATION = 375;
+
+    // Shared path in [0, 100] bounds, along with the icon mask it was created for
+    private static Path sProgressPath;
+    private static String sProgressPathMask;
+
     // Path in [0, 100] bounds.
     private final Path mProgressPath;
 
     public PlaceHolderIconDrawable(BitmapInfo info, Context context) {
         super(info);
 
-        mProgressPath = GraphicsUtils.getShapePath(100);
+        mProgressPath = getProgressPath(context);
         mPaint.setColor(ColorUtils.compositeColors(
                 GraphicsUtils.getAttrColor(context, R.attr.loadingIconColor), info.color));
     }
 
+    /**
+     * Returns the placeholder path shared by all the drawables, which is only created again when
+     * the system icon shape changes. The returned path must not be modified.
+     */
+    private static Path getProgressPath(Context context) {
+        String mask = CONFIG_ICON_MASK_RES_ID == ID_NULL
+                ? "" : context.getResources().getString(CONFIG_ICON_MASK_RES_ID);
+        synchronized (PlaceHolderIconDrawable.class) {
+            if (sProgressPath == null || !mask.equals(sProgressPathMask)) {
+                sProgressPath = GraphicsUtils.getShapePath(100);
+                sProgressPathMask = mask;
+            }
+            return sProgressPath;
+        }
+    }
+
     @Override
     protected void drawInternal(Canvas canvas, Rect bounds) {
         int saveCount = canvas.save();
@@ -56,24 +86,99 @@ public class PlaceHolderIconDrawable extends FastBitmapDrawable {
 
     /** Updates this placeholder to {@code newIcon} with animation. */
     public void animateIconUpdate(Drawable newIcon) {
-        int placeholderColor = mPaint.getColor();
-        int originalAlpha = Color.alpha(placeholderColor);
-
-        ValueAnimator iconUpdateAnimation = ValueAnimator.ofInt(originalAlpha, 0);
-        iconUpdateAnimation.setDuration(375);
-        iconUpdateAnimation.addUpdateListener(valueAnimator -> {
-            int newAlpha = (int) valueAnimator.getAnimatedValue();
-            int newColor = ColorUtils.setAlphaComponent(placeholderColor, newAlpha);
-
-            newIcon.setColorFilter(new PorterDuffColorFilter(newColor, PorterDuff.Mode.SRC_ATOP));
-        });
-        iconUpdateAnimation.addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationEnd(Animator animation) {
-                newIcon.setColorFilter(null);
-            }
-        });
-        iconUpdateAnimation.start();
+        IconUpdateAnimator.INSTANCE.add(newIcon, mPaint.getColor());
     }
 
+    /**
+     * Animates all the pending icon updates using a single animator, so that the updates started
+     * together are drawn in the same frames. Color filters are shared by all the updates with
+     * the same placeholder color, and are not created again on every frame.
+     */
+    private static class IconUpdateAnimator implements TimeAnimator.TimeListener {
+
+        static final IconUpdateAnimator INSTANCE = new IconUpdateAnimator();
+
+        // Number of distinct alpha values used during the animation
+        private static final int ALPHA_STEPS = 32;
+        private static final Interpolator INTERPOLATOR = new AccelerateDecelerateInterpolator();
+
+        private final ArrayList<IconUpdate> mUpdates = new ArrayList<>();
+        // Filters for every alpha step, keyed on the placeholder color
+        private final SparseArray<PorterDuffColorFilter[]> mFilters = new SparseArray<>();
+        private TimeAnimator mAnimator;
+
+        void add(Drawable icon, int placeholderColor) {
+            for (int i = mUpdates.size() - 1; i >= 0; i--) {
+                if (mUpdates.get(i).icon == icon) {
+                    mUpdates.remove(i);
+                }
+            }
+            PorterDuffColorFilter[] filters = mFilters.get(placeholderColor);
+            if (filters == null) {
+                filters = new PorterDuffColorFilter[ALPHA_STEPS + 1];
+                mFilters.put(placeholderColor, filters);
+            }
+            IconUpdate update = new IconUpdate(icon, placeholderColor, filters);
+            update.setProgress(0);
+            mUpdates.add(update);
+
+            if (mAnimator == null) {
+                mAnimator = new TimeAnimator();
+                mAnimator.setTimeListener(this);
+            }
+            if (!mAnimator.isStarted()) {
+                mAnimator.start();
+            }
+        }
+
+        @Override
+        public void onTimeUpdate(TimeAnimator animation, long totalTime, long deltaTime) {
+            float duration = ICON_UPDATE_DURATION * ValueAnimator.getDurationScale();
+            for (int i = mUpdates.size() - 1; i >= 0; i--) {
+                IconUpdate update = mUpdates.get(i);
+                update.elapsed += deltaTime;
+                if (update.elapsed >= duration) {
+                    update.icon.setColorFilter(null);
+                    mUpdates.remove(i);
+                } else {
+                    update.setProgress(update.elapsed / duration);
+                }
+            }
+            if (mUpdates.isEmpty()) {
+                mFilters.clear();
+                animation.end();
+            }
+        }
+
+        private static class IconUpdate {
+
+            final Drawable icon;
+            final int placeholderColor;
+            final PorterDuffColorFilter[] filters;
+
+            long elapsed;
+            int alphaStep = -1;
+
+            IconUpdate(Drawable icon, int placeholderColor, PorterDuffColorFilter[] filters) {
+                this.icon = icon;
+                this.placeholderColor = placeholderColor;
+                this.filters = filters;
+            }
+
+            void setProgress(float progress) {
+                int step = Math.round((1 - INTERPOLATOR.getInterpolation(progress)) * ALPHA_STEPS);
+                if (step == alphaStep) {
+                    return;
+                }
+                alphaStep = step;
+                if (filters[step] == null) {
+                    int alpha = Color.alpha(placeholderColor) * step / ALPHA_STEPS;
+                    filters[step] = new PorterDuffColorFilter(
+                            ColorUtils.setAlphaComponent(placeholderColor, alpha),
+                            PorterDuff.Mode.SRC_ATOP);
+                }
+                icon.setColorFilter(filters[step]);
+            }
+        }
+    }
 }
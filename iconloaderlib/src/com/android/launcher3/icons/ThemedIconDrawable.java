@@ -18,7 +18,9 @@ package com.android.launcher3.icons;
 import static android.content.res.Configuration.UI_MODE_NIGHT_MASK;
 import static android.content.res.Configuration.UI_MODE_NIGHT_YES;
 
+import android.content.ComponentCallbacks;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BlendMode;
@@ -27,6 +29,14 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class to handle monochrome themed app icons
@@ -36,6 +46,14 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
 
     public static final String TAG = "ThemedIconDrawable";
 
+    // Theme colors for day and night mode, resolved once per configuration
+    private static final AtomicReference<ThemeColors> sThemeColors =
+            new AtomicReference<>(new ThemeColors(null, null));
+    private static boolean sColorInvalidatorRegistered;
+
+    // Shared SRC_IN filters, keyed by color
+    private static final SparseArray<ColorFilter> sSrcInFilters = new SparseArray<>();
+
     final BitmapInfo bitmapInfo;
     final int colorFg, colorBg;
 
@@ -48,6 +66,13 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
 
     private final ColorFilter mBgFilter, mMonoFilter;
 
+    // Optional pre-composited version of the background and the monochrome icon
+    @Nullable
+    private final FlattenedIcon mFlattenedIcon;
+    private final Paint mFlattenedPaint =
+            new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private boolean mBgColorChanged;
+
     protected ThemedIconDrawable(ThemedConstantState constantState) {
         super(constantState.mBitmap, constantState.colorFg);
         bitmapInfo = constantState.bitmapInfo;
@@ -55,16 +80,23 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
         colorFg = constantState.colorFg;
 
         mMonoIcon = bitmapInfo.mMono;
-        mMonoFilter = new BlendModeColorFilter(colorFg, BlendMode.SRC_IN);
+        mMonoFilter = getSrcInFilter(colorFg);
         mMonoPaint.setColorFilter(mMonoFilter);
 
         mBgBitmap = bitmapInfo.mWhiteShadowLayer;
-        mBgFilter = new BlendModeColorFilter(colorBg, BlendMode.SRC_IN);
+        mBgFilter = getSrcInFilter(colorBg);
         mBgPaint.setColorFilter(mBgFilter);
+
+        mFlattenedIcon = constantState.mFlattenedIcon;
     }
 
     @Override
     protected void drawInternal(Canvas canvas, Rect bounds) {
+        Bitmap flattened = mFlattenedIcon == null ? null : mFlattenedIcon.mBitmap;
+        if (flattened != null && !mIsDisabled && !mBgColorChanged) {
+            canvas.drawBitmap(flattened, null, bounds, mFlattenedPaint);
+            return;
+        }
         canvas.drawBitmap(mBgBitmap, null, bounds, mBgPaint);
         canvas.drawBitmap(mMonoIcon, null, bounds, mMonoPaint);
     }
@@ -74,12 +106,23 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
         super.updateFilter();
         int alpha = mIsDisabled ? (int) (mDisabledAlpha * FULLY_OPAQUE) : FULLY_OPAQUE;
         mBgPaint.setAlpha(alpha);
-        mBgPaint.setColorFilter(mIsDisabled ? new BlendModeColorFilter(
-                getDisabledColor(colorBg), BlendMode.SRC_IN) : mBgFilter);
+        mBgPaint.setColorFilter(mIsDisabled
+                ? getSrcInFilter(getDisabledColor(colorBg)) : mBgFilter);
 
         mMonoPaint.setAlpha(alpha);
-        mMonoPaint.setColorFilter(mIsDisabled ? new BlendModeColorFilter(
-                getDisabledColor(colorFg), BlendMode.SRC_IN) : mMonoFilter);
+        mMonoPaint.setColorFilter(mIsDisabled
+                ? getSrcInFilter(getDisabledColor(colorFg)) : mMonoFilter);
+    }
+
+    private static ColorFilter getSrcInFilter(int color) {
+        synchronized (sSrcInFilters) {
+            ColorFilter filter = sSrcInFilters.get(color);
+            if (filter == null) {
+                filter = new BlendModeColorFilter(color, BlendMode.SRC_IN);
+                putBounded(sSrcInFilters, color, filter);
+            }
+            return filter;
+        }
     }
 
     @Override
@@ -93,7 +136,8 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
     }
 
     public void changeBackgroundColor(int colorBg){
-        mBgPaint.setColorFilter(new BlendModeColorFilter(colorBg, BlendMode.SRC_IN));
+        mBgColorChanged = true;
+        mBgPaint.setColorFilter(getSrcInFilter(colorBg));
     }
 
     static class ThemedConstantState extends FastBitmapConstantState {
@@ -101,11 +145,15 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
         final BitmapInfo bitmapInfo;
         final int colorFg, colorBg;
 
+        @Nullable
+        final FlattenedIcon mFlattenedIcon;
+
         public ThemedConstantState(BitmapInfo bitmapInfo, int colorBg, int colorFg) {
             super(bitmapInfo.icon, bitmapInfo.color);
             this.bitmapInfo = bitmapInfo;
             this.colorBg = colorBg;
             this.colorFg = colorFg;
+            mFlattenedIcon = FlattenedIconCache.get(bitmapInfo, colorBg, colorFg);
         }
 
         @Override
@@ -115,28 +163,195 @@ public class ThemedIconDrawable extends FastBitmapDrawable {
     }
 
     public static FastBitmapDrawable newDrawable(BitmapInfo info, Context context) {
-        int[] colors = getColors(context);
+        int[] colors = getSharedColors(context);
         return new ThemedConstantState(info, colors[0], colors[1]).newDrawable();
     }
 
     /**
-     * Get an int array representing background and foreground colors for themed icons
+     * Get an int array representing background and foreground colors for themed icons.
      */
     public static int[] getColors(Context context) {
+        return getSharedColors(context).clone();
+    }
+
+    /**
+     * Same as {@link #getColors(Context)}, but the returned array is shared and must not be
+     * modified
+     */
+    static int[] getSharedColors(Context context) {
         Resources res = context.getResources();
-        int[] colors = new int[2];
-        if ((res.getConfiguration().uiMode & UI_MODE_NIGHT_MASK) == UI_MODE_NIGHT_YES) {
+        boolean isNight =
+                (res.getConfiguration().uiMode & UI_MODE_NIGHT_MASK) == UI_MODE_NIGHT_YES;
+        ThemeColors themeColors = sThemeColors.get();
+        int[] colors = isNight ? themeColors.night : themeColors.day;
+        if (colors != null) {
+            return colors;
+        }
+
+        registerColorInvalidator(context);
+        colors = new int[2];
+        if (isNight) {
             colors[0] = res.getColor(android.R.color.system_neutral1_800);
             colors[1] = res.getColor(android.R.color.system_accent1_100);
         } else {
             colors[0] = res.getColor(android.R.color.system_accent1_100);
             colors[1] = res.getColor(android.R.color.system_neutral2_700);
         }
+        // Colors resolved before an invalidation are returned, but not kept
+        sThemeColors.compareAndSet(themeColors, isNight
+                ? new ThemeColors(themeColors.day, colors)
+                : new ThemeColors(colors, themeColors.night));
         return colors;
     }
 
+    /**
+     * Clears the cached theme colors and the flattened icons using them, so that they are
+     * created again on next use. This happens automatically on any configuration change, which
+     * includes uiMode and overlay changes.
+     */
+    public static void invalidateColors() {
+        sThemeColors.set(new ThemeColors(null, null));
+        FlattenedIconCache.clear();
+    }
+
+    private static synchronized void registerColorInvalidator(Context context) {
+        if (sColorInvalidatorRegistered) {
+            return;
+        }
+        sColorInvalidatorRegistered = true;
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                invalidateColors();
+            }
+
+            @Override
+            public void onLowMemory() { }
+        });
+    }
+
     @Override
     public int getIconColor() {
         return colorFg;
     }
+
+    /**
+     * Immutable snapshot of the theme colors, where the colors not resolved yet are null
+     */
+    private static final class ThemeColors {
+
+        @Nullable
+        final int[] day;
+        @Nullable
+        final int[] night;
+
+        ThemeColors(@Nullable int[] day, @Nullable int[] night) {
+            this.day = day;
+            this.night = night;
+        }
+    }
+
+    /**
+     * Optional process wide cache of themed icons pre-composited into a single bitmap, so that
+     * they can be drawn without any color filters. The cache is disabled until an executor is
+     * provided, and is cleared along with the theme colors on configuration changes.
+     */
+    public static final class FlattenedIconCache {
+
+        // Keyed by the monochrome bitmap, which values only reference weakly
+        private static final WeakHashMap<Bitmap, FlattenedIcon> sIcons = new WeakHashMap<>();
+
+        @Nullable
+        private static Executor sExecutor;
+
+        private FlattenedIconCache() { }
+
+        /**
+         * Enables the cache, with the icons being flattened on {@param executor}, or disables
+         * it if the executor is null.
+         */
+        public static void setExecutor(@Nullable Executor executor) {
+            synchronized (sIcons) {
+                sExecutor = executor;
+                sIcons.clear();
+            }
+        }
+
+        /**
+         * Removes all flattened icons, for eg, when the wallpaper colors or night mode change.
+         * Existing drawables keep using their icon, but new drawables will create new ones.
+         */
+        public static void clear() {
+            synchronized (sIcons) {
+                sIcons.clear();
+            }
+        }
+
+        @Nullable
+        static FlattenedIcon get(BitmapInfo info, int colorBg, int colorFg) {
+            if (info.mMono == null || info.mWhiteShadowLayer == null) {
+                return null;
+            }
+            synchronized (sIcons) {
+                if (sExecutor == null) {
+                    return null;
+                }
+                FlattenedIcon icon = sIcons.get(info.mMono);
+                if (icon == null || icon.colorBg != colorBg || icon.colorFg != colorFg) {
+                    icon = new FlattenedIcon(info.mMono, info.mWhiteShadowLayer, colorBg, colorFg);
+                    sIcons.put(info.mMono, icon);
+                    sExecutor.execute(icon);
+                }
+                return icon;
+            }
+        }
+    }
+
+    /**
+     * A themed icon composited into a single bitmap, which is created asynchronously
+     */
+    static final class FlattenedIcon implements Runnable {
+
+        final int colorBg, colorFg;
+
+        // Source bitmaps, the mono bitmap is weak as it is the cache key. Both are cleared once
+        // flattened.
+        @Nullable
+        private WeakReference<Bitmap> mMono;
+        @Nullable
+        private Bitmap mBg;
+
+        @Nullable
+        volatile Bitmap mBitmap;
+
+        FlattenedIcon(Bitmap mono, Bitmap bg, int colorBg, int colorFg) {
+            mMono = new WeakReference<>(mono);
+            mBg = bg;
+            this.colorBg = colorBg;
+            this.colorFg = colorFg;
+        }
+
+        @Override
+        public void run() {
+            Bitmap mono = mMono == null ? null : mMono.get();
+            Bitmap bg = mBg;
+            if (mono == null || bg == null) {
+                mMono = null;
+                mBg = null;
+                return;
+            }
+            int width = mono.getWidth();
+            int height = mono.getHeight();
+            mBitmap = BitmapRenderer.createHardwareBitmap(width, height, canvas -> {
+                Rect bounds = new Rect(0, 0, width, height);
+                Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+                paint.setColorFilter(getSrcInFilter(colorBg));
+                canvas.drawBitmap(bg, null, bounds, paint);
+                paint.setColorFilter(getSrcInFilter(colorFg));
+                canvas.drawBitmap(mono, null, bounds, paint);
+            });
+            mMono = null;
+            mBg = null;
+        }
+    }
 }
@@ -24,6 +24,9 @@ import static com.android.launcher3.icons.GraphicsUtils.setColorAlphaBound;
 
 import static java.util.Objects.requireNonNull;
 
+import android.app.AlarmManager;
+import android.app.AlarmManager.OnAlarmListener;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -45,10 +48,12 @@ import android.os.Handler;
 import android.os.LocaleList;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
@@ -59,18 +64,26 @@ import androidx.annotation.WorkerThread;
 import com.android.launcher3.icons.BaseIconFactory;
 import com.android.launcher3.icons.BaseIconFactory.IconOptions;
 import com.android.launcher3.icons.BitmapInfo;
+import com.android.launcher3.icons.IconMetrics;
+import com.android.launcher3.icons.IconProvider;
+import com.android.launcher3.icons.PackageResourcesCache;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.FlagOp;
 import com.android.launcher3.util.SQLiteCacheHelper;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public abstract class BaseIconCache {
@@ -80,6 +93,19 @@ public abstract class BaseIconCache {
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
 
+    // Packages which were not found are not looked up again for this duration
+    private static final long MISSING_PACKAGE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+    // Time before the day change at which the icons for the next day are rendered
+    private static final long NEXT_DAY_PRE_RENDER_LEAD_MS = TimeUnit.HOURS.toMillis(1);
+    // Delay allowed for the next day alarms, the system may not use a smaller window
+    private static final long NEXT_DAY_ALARM_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_MISSING_PACKAGES = 32;
+
+    // Number of most recently used entries which are not affected by trimMemory, except when the
+    // UI is hidden
+    private static final int TRIM_KEEP_RECENT_ENTRIES = 50;
+
     // Empty class name is used for storing package default entry.
     public static final String EMPTY_CLASS_NAME = ".";
 
@@ -89,8 +115,147 @@ public abstract class BaseIconCache {
         public BitmapInfo bitmap = BitmapInfo.LOW_RES_INFO;
         @NonNull
         public CharSequence title = "";
+
+        /**
+         * @deprecated use {@link #getContentDescription()}, this is not badged for the user
+         * until the content description is first read
+         */
+        @Deprecated
         @NonNull
         public CharSequence contentDescription = "";
+        // Label and user for which the badged content description is still to be computed
+        @Nullable
+        private CharSequence mDescriptionLabel;
+        @Nullable
+        private UserHandle mDescriptionUser;
+        // Used to badge the pending label, set once the entry is returned by the cache
+        @Nullable
+        private BadgedLabelCache mBadgedLabels;
+
+        // True if the mono icon was dropped by trimMemory, and needs to be loaded again
+        private boolean mMonoTrimmed;
+
+        /**
+         * Returns the content description, badged for the user of the entry. The badge is
+         * computed on first access, which can require a binder call.
+         */
+        @WorkerThread
+        @NonNull
+        public synchronized CharSequence getContentDescription() {
+            if (mDescriptionUser != null && mBadgedLabels != null) {
+                contentDescription = mBadgedLabels.getBadgedLabel(
+                        requireNonNull(mDescriptionLabel), mDescriptionUser);
+                mDescriptionLabel = null;
+                mDescriptionUser = null;
+            }
+            return contentDescription;
+        }
+
+        /**
+         * Sets the content description to the provided value
+         */
+        public synchronized void setContentDescription(
+                @NonNull final CharSequence contentDescription) {
+            this.contentDescription = contentDescription;
+            mDescriptionLabel = null;
+            mDescriptionUser = null;
+        }
+
+        /**
+         * Sets the content description to the label badged for the user. As badging can require
+         * a binder call, it is only done once {@link #getContentDescription()} is called on an
+         * entry returned by the cache, so that entries which are never displayed skip it.
+         */
+        public synchronized void setContentDescription(@NonNull final CharSequence label,
+                @NonNull final UserHandle user) {
+            contentDescription = label;
+            if (Process.myUserHandle().equals(user)) {
+                // The label is not badged for the current user
+                mDescriptionLabel = null;
+                mDescriptionUser = null;
+            } else {
+                mDescriptionLabel = label;
+                mDescriptionUser = user;
+            }
+        }
+
+        /**
+         * Copies the content description from the provided entry, without computing it
+         */
+        public void copyContentDescriptionFrom(@NonNull final CacheEntry other) {
+            CharSequence description;
+            CharSequence label;
+            UserHandle user;
+            synchronized (other) {
+                description = other.contentDescription;
+                label = other.mDescriptionLabel;
+                user = other.mDescriptionUser;
+            }
+            synchronized (this) {
+                contentDescription = description;
+                mDescriptionLabel = label;
+                mDescriptionUser = user;
+            }
+        }
+
+        private synchronized void setBadgedLabelCache(@NonNull final BadgedLabelCache labels) {
+            mBadgedLabels = labels;
+        }
+    }
+
+    /**
+     * Recently badged labels, keyed by the label and the user, so that the same label is not
+     * badged again when an entry is reloaded
+     */
+    private static final class BadgedLabelCache {
+
+        private static final int MAX_BADGED_LABELS = 32;
+
+        @NonNull
+        private final PackageManager mPackageManager;
+
+        // Access ordered, so that the least recently used label is dropped first
+        @NonNull
+        private final LinkedHashMap<Pair<String, UserHandle>, CharSequence> mLabels =
+                new LinkedHashMap<Pair<String, UserHandle>, CharSequence>(
+                        MAX_BADGED_LABELS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Pair<String, UserHandle>, CharSequence> eldest) {
+                        return size() > MAX_BADGED_LABELS;
+                    }
+                };
+
+        BadgedLabelCache(@NonNull final PackageManager packageManager) {
+            mPackageManager = packageManager;
+        }
+
+        @WorkerThread
+        @NonNull
+        CharSequence getBadgedLabel(@NonNull final CharSequence label,
+                @NonNull final UserHandle user) {
+            Pair<String, UserHandle> key = Pair.create(label.toString(), user);
+            synchronized (mLabels) {
+                CharSequence badged = mLabels.get(key);
+                if (badged != null) {
+                    return badged;
+                }
+            }
+            CharSequence badged = mPackageManager.getUserBadgedLabel(label, user);
+            synchronized (mLabels) {
+                mLabels.put(key, badged);
+            }
+            return badged;
+        }
+
+        /**
+         * Removes all the labels, should be called when the badge format can change
+         */
+        void clear() {
+            synchronized (mLabels) {
+                mLabels.clear();
+            }
+        }
     }
 
     @NonNull
@@ -99,9 +264,31 @@ public abstract class BaseIconCache {
     @NonNull
     protected final PackageManager mPackageManager;
 
+    // Memo of the labels badged for content descriptions, see CacheEntry#getContentDescription
+    @NonNull
+    private final BadgedLabelCache mBadgedLabels;
+
     @NonNull
     private final Map<ComponentKey, CacheEntry> mCache;
 
+    // Reused for lookups in mCache, must only be used while holding the lock
+    @NonNull
+    private final ComponentKey.Probe mProbeKey = new ComponentKey.Probe();
+
+    // Keys for the package entries, mapped by the user and the package name
+    @NonNull
+    private final Map<UserHandle, Map<String, ComponentKey>> mPackageKeys = new HashMap<>();
+
+    // Time until which the package is considered missing, mapped by the package key
+    @NonNull
+    private final Map<ComponentKey, Long> mMissingPackages =
+            new LinkedHashMap<ComponentKey, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ComponentKey, Long> eldest) {
+                    return size() > MAX_MISSING_PACKAGES;
+                }
+            };
+
     @NonNull
     protected final Handler mWorkerHandler;
 
@@ -128,17 +315,30 @@ public abstract class BaseIconCache {
     @NonNull
     private final Looper mBgLooper;
 
+    // Icons rendered ahead of time for the next day, swapped in once their system state is current
+    @NonNull
+    private final Map<ComponentKey, NextDayEntry> mNextDayEntries = new HashMap<>();
+    @NonNull
+    private final OnAlarmListener mNextDaySwapAlarm = this::swapNextDayIcons;
+    // Objects whose icons change with the day, rendered ahead of every day change
+    @NonNull
+    private final Map<ComponentKey, NextDayRequest<?>> mNextDayRequests = new HashMap<>();
+    @NonNull
+    private final OnAlarmListener mNextDayPreRenderAlarm = this::preRenderNextDayIcons;
+
     public BaseIconCache(@NonNull final Context context, @Nullable final String dbFileName,
             @NonNull final Looper bgLooper, final int iconDpi, final int iconPixelSize,
             final boolean inMemoryCache) {
         mContext = context;
         mDbFileName = dbFileName;
         mPackageManager = context.getPackageManager();
+        mBadgedLabels = new BadgedLabelCache(mPackageManager);
         mBgLooper = bgLooper;
         mWorkerHandler = new Handler(mBgLooper);
 
         if (inMemoryCache) {
-            mCache = new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+            // Access ordered, so that the least recently used entries are trimmed first
+            mCache = new LinkedHashMap<>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true);
         } else {
             // Use a dummy cache
             mCache = new AbstractMap<ComponentKey, CacheEntry>() {
@@ -188,6 +388,8 @@ public abstract class BaseIconCache {
         mIconDb.close();
         mIconDb = new IconDB(mContext, mDbFileName, iconPixelSize);
         mCache.clear();
+        mNextDayEntries.clear();
+        mMissingPackages.clear();
     }
 
     @Nullable
@@ -203,7 +405,8 @@ public abstract class BaseIconCache {
     @Nullable
     public Drawable getFullResIcon(@NonNull final String packageName, final int iconId) {
         try {
-            return getFullResIcon(mPackageManager.getResourcesForApplication(packageName), iconId);
+            return getFullResIcon(
+                    PackageResourcesCache.getResources(mPackageManager, packageName), iconId);
         } catch (PackageManager.NameNotFoundException e) { }
         return getFullResDefaultActivityIcon(mIconDpi);
     }
@@ -211,7 +414,8 @@ public abstract class BaseIconCache {
     @Nullable
     public Drawable getFullResIcon(@NonNull final ActivityInfo info) {
         try {
-            return getFullResIcon(mPackageManager.getResourcesForApplication(info.applicationInfo),
+            return getFullResIcon(
+                    PackageResourcesCache.getResources(mPackageManager, info.applicationInfo),
                     info.getIconResource());
         } catch (PackageManager.NameNotFoundException e) { }
         return getFullResDefaultActivityIcon(mIconDpi);
@@ -222,7 +426,7 @@ public abstract class BaseIconCache {
      */
     public synchronized void remove(@NonNull final ComponentName componentName,
             @NonNull final UserHandle user) {
-        mCache.remove(new ComponentKey(componentName, user));
+        mCache.remove(mProbeKey.set(componentName, user));
     }
 
     /**
@@ -247,7 +451,15 @@ public abstract class BaseIconCache {
      */
     public synchronized void removeIconsForPkg(@NonNull final String packageName,
             @NonNull final UserHandle user) {
+        PackageResourcesCache.invalidate(packageName, user);
         removeFromMemCacheLocked(packageName, user);
+        Map<String, ComponentKey> userKeys = mPackageKeys.get(user);
+        if (userKeys != null) {
+            ComponentKey packageKey = userKeys.remove(packageName);
+            if (packageKey != null) {
+                mMissingPackages.remove(packageKey);
+            }
+        }
         long userSerial = getSerialNumberForUser(user);
         mIconDb.delete(
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
@@ -268,6 +480,8 @@ public abstract class BaseIconCache {
     private void updateSystemState() {
         mLocaleList = mContext.getResources().getConfiguration().getLocales();
         mSystemState = mLocaleList.toLanguageTags() + "," + Build.VERSION.SDK_INT;
+        // The badge format is localized
+        mBadgedLabels.clear();
     }
 
     @NonNull
@@ -275,6 +489,17 @@ public abstract class BaseIconCache {
         return mSystemState;
     }
 
+    /**
+     * Returns the system state of the package after the next day change, or null if its icons
+     * do not change with the day. Caches using {@link IconProvider#getSystemStateForPackage} for
+     * the system state should use {@link IconProvider#getNextDaySystemStateForPackage} here.
+     * @see #getIconSystemState(String)
+     */
+    @Nullable
+    protected String getNextDayIconSystemState(@NonNull final String packageName) {
+        return null;
+    }
+
     /**
      * Adds an entry into the DB and the in-memory cache.
      * @param replaceExisting if true, it will recreate the bitmap even if it already exists in
@@ -287,6 +512,7 @@ public abstract class BaseIconCache {
             final long userSerial, final boolean replaceExisting) {
         UserHandle user = cachingLogic.getUser(object);
         ComponentName componentName = cachingLogic.getComponent(object);
+        clearMissingPackageLocked(componentName.getPackageName(), user);
 
         final ComponentKey key = new ComponentKey(componentName, user);
         CacheEntry entry = null;
@@ -299,7 +525,10 @@ public abstract class BaseIconCache {
         }
         if (entry == null) {
             entry = new CacheEntry();
-            entry.bitmap = cachingLogic.loadIcon(mContext, object);
+            BitmapInfo nextDayIcon = takeNextDayIconLocked(
+                    key, info, cachingLogic.getLastUpdatedTime(object, info));
+            entry.bitmap = nextDayIcon != null
+                    ? nextDayIcon : cachingLogic.loadIcon(mContext, object);
         }
         // Icon can't be loaded from cachingLogic, which implies alternative icon was loaded
         // (e.g. fallback icon, default icon). So we drop here since there's no point in caching
@@ -313,7 +542,7 @@ public abstract class BaseIconCache {
         }
         entry.title = entryTitle;
 
-        entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
+        entry.setContentDescription(entry.title, user);
         if (cachingLogic.addToMemCache()) mCache.put(key, entry);
 
         ContentValues values = newContentValues(entry.bitmap, entry.title.toString(),
@@ -322,6 +551,185 @@ public abstract class BaseIconCache {
                 cachingLogic.getLastUpdatedTime(object, info));
     }
 
+    /**
+     * Registers the object to have its icon rendered ahead of every day change, if its icon
+     * changes with the day, see {@link #preRenderNextDayIcon}. Icons are rendered on the worker
+     * thread, {@link #NEXT_DAY_PRE_RENDER_LEAD_MS} before the day change.
+     */
+    public synchronized <T> void scheduleNextDayIcon(@NonNull final T object,
+            @NonNull final CachingLogic<T> cachingLogic, final long userSerial) {
+        ComponentName componentName = cachingLogic.getComponent(object);
+        if (getNextDayIconSystemState(componentName.getPackageName()) == null) {
+            return;
+        }
+        NextDayRequest<T> request = new NextDayRequest<>(object, cachingLogic, userSerial);
+        mNextDayRequests.put(
+                new ComponentKey(componentName, cachingLogic.getUser(object)), request);
+        long now = System.currentTimeMillis();
+        if (isNextDayPreRenderTime(now)) {
+            // The icons for the next day are already rendered, only add this one
+            mWorkerHandler.post(() -> {
+                synchronized (BaseIconCache.this) {
+                    request.preRender();
+                }
+            });
+        }
+        setNextDayAlarm(mNextDayPreRenderAlarm, getNextDayPreRenderTime(now));
+    }
+
+    /**
+     * Renders the icons of all the objects registered with {@link #scheduleNextDayIcon}, and
+     * schedules the rendering for the following day
+     */
+    private synchronized void preRenderNextDayIcons() {
+        long now = System.currentTimeMillis();
+        // The alarm is delivered late if the device was asleep, the icons are only rendered
+        // within the lead time, as they would otherwise be for the day after the next one
+        if (isNextDayPreRenderTime(now)) {
+            Iterator<NextDayRequest<?>> itr = mNextDayRequests.values().iterator();
+            while (itr.hasNext()) {
+                if (!itr.next().preRender()) {
+                    itr.remove();
+                }
+            }
+        }
+        if (!mNextDayRequests.isEmpty()) {
+            setNextDayAlarm(mNextDayPreRenderAlarm, getNextDayPreRenderTime(now));
+        }
+    }
+
+    /**
+     * Returns true if {@param now} is within the lead time before the next day change
+     */
+    private static boolean isNextDayPreRenderTime(long now) {
+        return IconProvider.getNextDayStartTime(now) - NEXT_DAY_PRE_RENDER_LEAD_MS <= now;
+    }
+
+    /**
+     * Returns the wall clock time of the next pre-rendering after {@param now}. This is computed
+     * from the wall clock every time, so that a late alarm or a time change does not skip a day.
+     */
+    private static long getNextDayPreRenderTime(long now) {
+        long nextDay = IconProvider.getNextDayStartTime(now);
+        if (nextDay - NEXT_DAY_PRE_RENDER_LEAD_MS <= now) {
+            nextDay = IconProvider.getNextDayStartTime(nextDay);
+        }
+        return nextDay - NEXT_DAY_PRE_RENDER_LEAD_MS;
+    }
+
+    /**
+     * Runs the listener on the worker thread at the provided wall clock time, replacing any
+     * previous alarm for the same listener. A non-wakeup RTC alarm is used instead of a handler
+     * delay, as the uptime clock stops while the device is asleep.
+     */
+    private void setNextDayAlarm(@NonNull final OnAlarmListener listener,
+            final long triggerAtMillis) {
+        AlarmManager alarmManager = mContext.getSystemService(AlarmManager.class);
+        alarmManager.setWindow(AlarmManager.RTC, triggerAtMillis, NEXT_DAY_ALARM_WINDOW_MS,
+                TAG, listener, mWorkerHandler);
+    }
+
+    /**
+     * Renders the icon that the object will have after the next day change, if its icon changes
+     * with the day. The icon is swapped in at the start of the next day, or used directly if the
+     * object is updated after the day change, so that it is not rendered while the user waits.
+     * This is called for objects registered with {@link #scheduleNextDayIcon} before every day
+     * change.
+     *
+     * @return true if an icon is available for the next day
+     */
+    public synchronized <T> boolean preRenderNextDayIcon(@NonNull final T object,
+            @NonNull final CachingLogic<T> cachingLogic, @NonNull final PackageInfo info,
+            final long userSerial) {
+        ComponentName componentName = cachingLogic.getComponent(object);
+        String systemState = getNextDayIconSystemState(componentName.getPackageName());
+        if (systemState == null) {
+            return false;
+        }
+        ComponentKey key = new ComponentKey(componentName, cachingLogic.getUser(object));
+        long lastUpdateTime = cachingLogic.getLastUpdatedTime(object, info);
+        NextDayEntry existing = mNextDayEntries.get(key);
+        if (existing != null && existing.systemState.equals(systemState)
+                && existing.versionCode == info.versionCode
+                && existing.lastUpdateTime == lastUpdateTime) {
+            return true;
+        }
+        BitmapInfo bitmap = cachingLogic.loadNextDayIcon(mContext, object);
+        if (bitmap == null || bitmap.isNullOrLowRes()) {
+            return false;
+        }
+        mNextDayEntries.put(key, new NextDayEntry(bitmap, systemState, userSerial,
+                info.versionCode, lastUpdateTime));
+        setNextDayAlarm(mNextDaySwapAlarm,
+                IconProvider.getNextDayStartTime(System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Returns the icon rendered ahead of time for the component, if it is valid for the current
+     * system state and the provided package version
+     */
+    @Nullable
+    private BitmapInfo takeNextDayIconLocked(@NonNull final ComponentKey key,
+            @NonNull final PackageInfo info, final long lastUpdateTime) {
+        NextDayEntry next = mNextDayEntries.get(key);
+        if (next == null || !next.systemState.equals(
+                getIconSystemState(key.componentName.getPackageName()))) {
+            return null;
+        }
+        mNextDayEntries.remove(key);
+        return next.versionCode == info.versionCode && next.lastUpdateTime == lastUpdateTime
+                ? next.bitmap : null;
+    }
+
+    /**
+     * Replaces the icons in the DB and the memory cache with the icons rendered for the new day
+     */
+    private synchronized void swapNextDayIcons() {
+        boolean dayNotChanged = false;
+        Iterator<Map.Entry<ComponentKey, NextDayEntry>> itr = mNextDayEntries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<ComponentKey, NextDayEntry> e = itr.next();
+            ComponentKey key = e.getKey();
+            NextDayEntry next = e.getValue();
+            String packageName = key.componentName.getPackageName();
+            if (!next.systemState.equals(getIconSystemState(packageName))) {
+                // Keep the icon if this was called slightly before the day change
+                if (next.systemState.equals(getNextDayIconSystemState(packageName))) {
+                    dayNotChanged = true;
+                } else {
+                    itr.remove();
+                }
+                continue;
+            }
+            itr.remove();
+
+            ContentValues values = newContentValues(next.bitmap, "", packageName, null);
+            values.remove(IconDB.COLUMN_LABEL);
+            values.remove(IconDB.COLUMN_KEYWORDS);
+            // Only replace the icon if the package was not updated after it was rendered
+            int updated = mIconDb.update(values,
+                    IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ? AND "
+                            + IconDB.COLUMN_VERSION + " = ? AND "
+                            + IconDB.COLUMN_LAST_UPDATED + " = ?",
+                    new String[]{key.componentName.flattenToString(),
+                            Long.toString(next.userSerial), Integer.toString(next.versionCode),
+                            Long.toString(next.lastUpdateTime)});
+            CacheEntry entry = mCache.get(key);
+            if (updated > 0 && entry != null) {
+                CacheEntry newEntry = new CacheEntry();
+                newEntry.bitmap = next.bitmap;
+                newEntry.title = entry.title;
+                newEntry.copyContentDescriptionFrom(entry);
+                mCache.put(key, newEntry);
+            }
+        }
+        if (dayNotChanged) {
+            setNextDayAlarm(mNextDaySwapAlarm,
+                    IconProvider.getNextDayStartTime(System.currentTimeMillis()));
+        }
+    }
+
     /**
      * Updates {@param values} to contain versioning information and adds it to the DB.
      * @param values {@link ContentValues} containing icon & title
@@ -390,9 +798,10 @@ public abstract class BaseIconCache {
             @Nullable final Cursor cursor, final boolean usePackageIcon,
             final boolean useLowResIcon) {
         assertWorkerThread();
-        ComponentKey cacheKey = new ComponentKey(componentName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null || (entry.bitmap.isLowRes() && !useLowResIcon)) {
+        CacheEntry entry = mCache.get(mProbeKey.set(componentName, user));
+        if (entry == null
+                || ((entry.bitmap.isLowRes() || entry.mMonoTrimmed) && !useLowResIcon)) {
+            ComponentKey cacheKey = new ComponentKey(componentName, user);
             entry = new CacheEntry();
             if (cachingLogic.addToMemCache()) {
                 mCache.put(cacheKey, entry);
@@ -404,7 +813,10 @@ public abstract class BaseIconCache {
             boolean cacheEntryUpdated = cursor == null
                     ? getEntryFromDBLocked(cacheKey, entry, useLowResIcon)
                     : updateTitleAndIconLocked(cacheKey, entry, cursor, useLowResIcon);
-            if (!cacheEntryUpdated) {
+            if (cacheEntryUpdated) {
+                IconMetrics.recordDbHit();
+            } else {
+                IconMetrics.recordDbMiss();
                 object = infoProvider.get();
                 providerFetchedOnce = true;
 
@@ -427,7 +839,10 @@ public abstract class BaseIconCache {
                     loadFallbackTitle(object, entry, cachingLogic, user);
                 }
             }
+        } else {
+            IconMetrics.recordMemoryHit();
         }
+        entry.setBadgedLabelCache(mBadgedLabels);
         return entry;
     }
 
@@ -438,6 +853,7 @@ public abstract class BaseIconCache {
             @NonNull final CachingLogic<T> cachingLogic, final boolean usePackageIcon,
             final boolean usePackageTitle, @NonNull final ComponentName componentName,
             @NonNull final UserHandle user) {
+        IconMetrics.recordFallbackLoad();
         if (object != null) {
             entry.bitmap = cachingLogic.loadIcon(mContext, object);
         } else {
@@ -447,7 +863,7 @@ public abstract class BaseIconCache {
                 if (DEBUG) Log.d(TAG, "using package default icon for " +
                         componentName.toShortString());
                 entry.bitmap = packageEntry.bitmap;
-                entry.contentDescription = packageEntry.contentDescription;
+                entry.copyContentDescriptionFrom(packageEntry);
 
                 if (usePackageTitle) {
                     entry.title = packageEntry.title;
@@ -468,13 +884,98 @@ public abstract class BaseIconCache {
             @NonNull final T object, @NonNull final CacheEntry entry,
             @NonNull final CachingLogic<T> cachingLogic, @NonNull final UserHandle user) {
         entry.title = cachingLogic.getLabel(object);
-        entry.contentDescription = mPackageManager.getUserBadgedLabel(
+        entry.setContentDescription(
                 cachingLogic.getDescription(object, entry.title), user);
     }
 
     public synchronized void clear() {
         assertWorkerThread();
         mIconDb.clear();
+        mNextDayEntries.clear();
+        mMissingPackages.clear();
+    }
+
+    /**
+     * Releases memory held by the in-memory cache, based on the level provided to
+     * {@link ComponentCallbacks2#onTrimMemory}. Least recently used entries are first replaced
+     * with low resolution entries, which keep the title and color. At stronger levels, mono
+     * icons are dropped, and then the entries are removed completely.
+     *
+     * This must be called on the worker thread, as it waits for any ongoing cache update.
+     * Callers handling {@link ComponentCallbacks2#onTrimMemory} on the main thread should post
+     * it to the worker looper.
+     *
+     * @return an upper bound of the bitmap bytes released, as some of the bitmaps dropped by the
+     *         cache can still be used by icons outside of it
+     */
+    @WorkerThread
+    public synchronized long trimMemory(final int level) {
+        assertWorkerThread();
+        final boolean dropHighRes;
+        final boolean dropMono;
+        final boolean dropEntries;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            dropHighRes = dropMono = dropEntries = true;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            dropHighRes = dropMono = true;
+            dropEntries = false;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            dropHighRes = true;
+            dropMono = dropEntries = false;
+        } else {
+            return 0;
+        }
+        // Recently used entries are likely visible, unless the UI is hidden
+        int keepRecent = level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                ? 0 : TRIM_KEEP_RECENT_ENTRIES;
+        int trimCount = mCache.size() - keepRecent;
+
+        Set<Bitmap> released = Collections.newSetFromMap(new IdentityHashMap<>());
+        long maxReleasedBytes = 0;
+        Iterator<Map.Entry<ComponentKey, CacheEntry>> itr = mCache.entrySet().iterator();
+        // Entries are iterated from the least recently used
+        for (int i = 0; i < trimCount && itr.hasNext(); i++) {
+            Map.Entry<ComponentKey, CacheEntry> e = itr.next();
+            CacheEntry entry = e.getValue();
+            BitmapInfo bitmap = entry.bitmap;
+            if (isPackageKeyLocked(e.getKey())) {
+                // Package entries can hold icons which are not persisted in the DB
+                continue;
+            }
+            if (dropEntries) {
+                maxReleasedBytes += getReleasedBytes(bitmap.icon, released)
+                        + getReleasedBytes(bitmap.getMono(), released);
+                itr.remove();
+            } else if (dropHighRes && !bitmap.isNullOrLowRes()) {
+                maxReleasedBytes += getReleasedBytes(bitmap.icon, released)
+                        + getReleasedBytes(bitmap.getMono(), released);
+                entry.bitmap = bitmap.toLowRes();
+            }
+        }
+        if (dropMono) {
+            // Remaining entries keep their icons, and are loaded again with the mono icon on
+            // the next high resolution request
+            while (itr.hasNext()) {
+                Map.Entry<ComponentKey, CacheEntry> e = itr.next();
+                CacheEntry entry = e.getValue();
+                Bitmap mono = entry.bitmap.getMono();
+                if (mono != null && !isPackageKeyLocked(e.getKey())) {
+                    maxReleasedBytes += getReleasedBytes(mono, released);
+                    entry.bitmap = entry.bitmap.withoutMono();
+                    entry.mMonoTrimmed = true;
+                }
+            }
+        }
+        return maxReleasedBytes;
+    }
+
+    private static long getReleasedBytes(@Nullable final Bitmap bitmap,
+            @NonNull final Set<Bitmap> released) {
+        if (bitmap == null || bitmap == LOW_RES_ICON || !released.add(bitmap)) {
+            return 0;
+        }
+        return bitmap.getAllocationByteCount();
     }
 
     /**
@@ -485,8 +986,9 @@ public abstract class BaseIconCache {
             @NonNull final UserHandle user, @Nullable final Bitmap icon,
             @Nullable final CharSequence title) {
         removeFromMemCacheLocked(packageName, user);
+        clearMissingPackageLocked(packageName, user);
 
-        ComponentKey cacheKey = getPackageKey(packageName, user);
+        ComponentKey cacheKey = getPackageKeyLocked(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
 
         // For icon caching, do not go through DB. Just update the in-memory entry.
@@ -506,11 +1008,45 @@ public abstract class BaseIconCache {
         }
     }
 
+    /**
+     * Returns the key for the package entry. Keys are created once for every package and user.
+     * This method is not thread safe, it must be called from a synchronized method.
+     */
     @NonNull
-    private static ComponentKey getPackageKey(@NonNull final String packageName,
+    private ComponentKey getPackageKeyLocked(@NonNull final String packageName,
             @NonNull final UserHandle user) {
-        ComponentName cn = new ComponentName(packageName, packageName + EMPTY_CLASS_NAME);
-        return new ComponentKey(cn, user);
+        Map<String, ComponentKey> userKeys = mPackageKeys.get(user);
+        if (userKeys == null) {
+            userKeys = new HashMap<>();
+            mPackageKeys.put(user, userKeys);
+        }
+        ComponentKey key = userKeys.get(packageName);
+        if (key == null) {
+            ComponentName cn = new ComponentName(packageName, packageName + EMPTY_CLASS_NAME);
+            key = new ComponentKey(cn, user);
+            userKeys.put(packageName, key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns true if the key is the key of a package entry
+     */
+    private boolean isPackageKeyLocked(@NonNull final ComponentKey key) {
+        Map<String, ComponentKey> userKeys = mPackageKeys.get(key.user);
+        return userKeys != null && userKeys.get(key.componentName.getPackageName()) == key;
+    }
+
+    /**
+     * Removes the package from the packages known to be missing, if present
+     */
+    private void clearMissingPackageLocked(@NonNull final String packageName,
+            @NonNull final UserHandle user) {
+        Map<String, ComponentKey> userKeys = mPackageKeys.get(user);
+        ComponentKey packageKey = userKeys == null ? null : userKeys.get(packageName);
+        if (packageKey != null) {
+            mMissingPackages.remove(packageKey);
+        }
     }
 
     /**
@@ -522,11 +1058,18 @@ public abstract class BaseIconCache {
     protected CacheEntry getEntryForPackageLocked(@NonNull final String packageName,
             @NonNull final UserHandle user, final boolean useLowResIcon) {
         assertWorkerThread();
-        ComponentKey cacheKey = getPackageKey(packageName, user);
+        ComponentKey cacheKey = getPackageKeyLocked(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
 
         if (entry == null || (entry.bitmap.isLowRes() && !useLowResIcon)) {
             entry = new CacheEntry();
+            Long missingUntil = mMissingPackages.get(cacheKey);
+            if (missingUntil != null) {
+                if (SystemClock.elapsedRealtime() < missingUntil) {
+                    return entry;
+                }
+                mMissingPackages.remove(cacheKey);
+            }
             boolean entryUpdated = true;
 
             // Check the DB first.
@@ -549,9 +1092,10 @@ public abstract class BaseIconCache {
                     li.close();
 
                     entry.title = appInfo.loadLabel(mPackageManager);
-                    entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
+                    entry.setContentDescription(entry.title, user);
                     entry.bitmap = BitmapInfo.of(
                             useLowResIcon ? LOW_RES_ICON : iconInfo.icon, iconInfo.color);
+                    entry.bitmap.setPalette(iconInfo.getPalette());
 
                     // Add the icon in the DB here, since these do not get written during
                     // package updates.
@@ -563,6 +1107,8 @@ public abstract class BaseIconCache {
                 } catch (NameNotFoundException e) {
                     if (DEBUG) Log.d(TAG, "Application not installed " + packageName);
                     entryUpdated = false;
+                    mMissingPackages.put(cacheKey,
+                            SystemClock.elapsedRealtime() + MISSING_PACKAGE_TIMEOUT_MS);
                 }
             }
 
@@ -571,6 +1117,7 @@ public abstract class BaseIconCache {
                 mCache.put(cacheKey, entry);
             }
         }
+        entry.setBadgedLabelCache(mBadgedLabels);
         return entry;
     }
 
@@ -602,16 +1149,17 @@ public abstract class BaseIconCache {
     private boolean updateTitleAndIconLocked(
             @NonNull final ComponentKey cacheKey, @NonNull final CacheEntry entry,
             @NonNull final Cursor c, final boolean lowRes) {
+        int flags = c.getInt(IconDB.INDEX_FLAGS);
         // Set the alpha to be 255, so that we never have a wrong color
         entry.bitmap = BitmapInfo.of(LOW_RES_ICON,
-                setColorAlphaBound(c.getInt(IconDB.INDEX_COLOR), 255));
+                setColorAlphaBound(c.getInt(IconDB.INDEX_COLOR), 255), flags);
+        int[] palette = unflattenPalette(c.getBlob(IconDB.INDEX_PALETTE));
         entry.title = c.getString(IconDB.INDEX_TITLE);
         if (entry.title == null) {
             entry.title = "";
-            entry.contentDescription = "";
+            entry.setContentDescription("");
         } else {
-            entry.contentDescription = mPackageManager.getUserBadgedLabel(
-                    entry.title, cacheKey.user);
+            entry.setContentDescription(entry.title, cacheKey.user);
         }
 
         if (!lowRes) {
@@ -619,12 +1167,21 @@ public abstract class BaseIconCache {
             if (data == null) {
                 return false;
             }
+            final long decodeStart = IconMetrics.startTimer();
             try {
                 BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
                 decodeOptions.inPreferredConfig = Config.HARDWARE;
-                entry.bitmap = BitmapInfo.of(
-                        requireNonNull(decodeByteArray(data, 0, data.length, decodeOptions)),
-                        entry.bitmap.color);
+                Bitmap icon = requireNonNull(
+                        decodeByteArray(data, 0, data.length, decodeOptions));
+                byte[] extendedData = c.getBlob(IconDB.INDEX_EXTENDED_DATA);
+                if (extendedData == null) {
+                    entry.bitmap = BitmapInfo.of(icon, entry.bitmap.color, flags);
+                } else {
+                    try (BaseIconFactory factory = getIconFactory()) {
+                        entry.bitmap = requireNonNull(factory.restoreBitmapInfo(
+                                icon, entry.bitmap.color, flags, extendedData));
+                    }
+                }
             } catch (Exception e) {
                 return false;
             }
@@ -645,8 +1202,9 @@ public abstract class BaseIconCache {
                     entry.bitmap.setMonoIcon(monoBitmap, factory);
                 }
             }
+            IconMetrics.recordDecode(decodeStart);
         }
-        entry.bitmap.flags = c.getInt(IconDB.INDEX_FLAGS);
+        entry.bitmap.setPalette(palette);
         entry.bitmap = entry.bitmap.withFlags(getUserFlagOpLocked(cacheKey.user));
         return entry.bitmap != null;
     }
@@ -659,11 +1217,68 @@ public abstract class BaseIconCache {
         return mIconDb.query(columns, selection, selectionArgs);
     }
 
+    /**
+     * Object registered for rendering its icon ahead of every day change
+     */
+    private final class NextDayRequest<T> {
+
+        @NonNull
+        private final T mObject;
+        @NonNull
+        private final CachingLogic<T> mCachingLogic;
+        private final long mUserSerial;
+
+        NextDayRequest(@NonNull final T object, @NonNull final CachingLogic<T> cachingLogic,
+                final long userSerial) {
+            mObject = object;
+            mCachingLogic = cachingLogic;
+            mUserSerial = userSerial;
+        }
+
+        /**
+         * Renders the icon for the next day, returns false if it can no longer be rendered
+         */
+        boolean preRender() {
+            String packageName = mCachingLogic.getComponent(mObject).getPackageName();
+            try {
+                PackageInfo info = mPackageManager.getPackageInfo(
+                        packageName, PackageManager.MATCH_UNINSTALLED_PACKAGES);
+                return preRenderNextDayIcon(mObject, mCachingLogic, info, mUserSerial);
+            } catch (NameNotFoundException e) {
+                if (DEBUG) Log.d(TAG, "Package not found for next day icon " + packageName);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Icon rendered ahead of time for the next day
+     */
+    private static final class NextDayEntry {
+
+        @NonNull
+        final BitmapInfo bitmap;
+        @NonNull
+        final String systemState;
+        final long userSerial;
+        final int versionCode;
+        final long lastUpdateTime;
+
+        NextDayEntry(@NonNull final BitmapInfo bitmap, @NonNull final String systemState,
+                final long userSerial, final int versionCode, final long lastUpdateTime) {
+            this.bitmap = bitmap;
+            this.systemState = systemState;
+            this.userSerial = userSerial;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+
     /**
      * Cache class to store the actual entries on disk
      */
     public static final class IconDB extends SQLiteCacheHelper {
-        private static final int RELEASE_VERSION = 34;
+        private static final int RELEASE_VERSION = 37;
 
         public static final String TABLE_NAME = "icons";
         public static final String COLUMN_ROWID = "rowid";
@@ -673,7 +1288,9 @@ public abstract class BaseIconCache {
         public static final String COLUMN_VERSION = "version";
         public static final String COLUMN_ICON = "icon";
         public static final String COLUMN_ICON_COLOR = "icon_color";
+        public static final String COLUMN_ICON_PALETTE = "icon_palette";
         public static final String COLUMN_MONO_ICON = "mono_icon";
+        public static final String COLUMN_EXTENDED_DATA = "extended_data";
         public static final String COLUMN_FLAGS = "flags";
         public static final String COLUMN_LABEL = "label";
         public static final String COLUMN_SYSTEM_STATE = "system_state";
@@ -683,19 +1300,24 @@ public abstract class BaseIconCache {
                 COLUMN_COMPONENT,
                 COLUMN_LABEL,
                 COLUMN_ICON_COLOR,
+                COLUMN_ICON_PALETTE,
                 COLUMN_FLAGS};
         public static final String[] COLUMNS_HIGH_RES = Arrays.copyOf(COLUMNS_LOW_RES,
-                COLUMNS_LOW_RES.length + 2, String[].class);
+                COLUMNS_LOW_RES.length + 3, String[].class);
         static {
             COLUMNS_HIGH_RES[COLUMNS_LOW_RES.length] = COLUMN_ICON;
             COLUMNS_HIGH_RES[COLUMNS_LOW_RES.length + 1] = COLUMN_MONO_ICON;
+            COLUMNS_HIGH_RES[COLUMNS_LOW_RES.length + 2] = COLUMN_EXTENDED_DATA;
         }
         private static final int INDEX_TITLE = Arrays.asList(COLUMNS_LOW_RES).indexOf(COLUMN_LABEL);
         private static final int INDEX_COLOR = Arrays.asList(COLUMNS_LOW_RES)
                 .indexOf(COLUMN_ICON_COLOR);
+        private static final int INDEX_PALETTE = Arrays.asList(COLUMNS_LOW_RES)
+                .indexOf(COLUMN_ICON_PALETTE);
         private static final int INDEX_FLAGS = Arrays.asList(COLUMNS_LOW_RES).indexOf(COLUMN_FLAGS);
         private static final int INDEX_ICON = COLUMNS_LOW_RES.length;
         private static final int INDEX_MONO_ICON = INDEX_ICON + 1;
+        private static final int INDEX_EXTENDED_DATA = INDEX_ICON + 2;
 
         public IconDB(Context context, String dbFileName, int iconPixelSize) {
             super(context, dbFileName, (RELEASE_VERSION << 16) + iconPixelSize, TABLE_NAME);
@@ -710,7 +1332,9 @@ public abstract class BaseIconCache {
                     + COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, "
                     + COLUMN_ICON + " BLOB, "
                     + COLUMN_MONO_ICON + " BLOB, "
+                    + COLUMN_EXTENDED_DATA + " BLOB, "
                     + COLUMN_ICON_COLOR + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_ICON_PALETTE + " BLOB, "
                     + COLUMN_FLAGS + " INTEGER NOT NULL DEFAULT 0, "
                     + COLUMN_LABEL + " TEXT, "
                     + COLUMN_SYSTEM_STATE + " TEXT, "
@@ -725,7 +1349,17 @@ public abstract class BaseIconCache {
             @NonNull final String label, @NonNull final String packageName,
             @Nullable final String keywords) {
         ContentValues values = new ContentValues();
-        if (bitmapInfo.canPersist()) {
+        boolean persist = bitmapInfo.canPersist();
+        byte[] extendedData = null;
+        if (persist) {
+            try {
+                extendedData = bitmapInfo.getExtendedData();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to serialize icon for " + packageName, e);
+                persist = false;
+            }
+        }
+        if (persist) {
             values.put(IconDB.COLUMN_ICON, flattenBitmap(bitmapInfo.icon));
 
             // Persist mono bitmap as alpha channel
@@ -739,12 +1373,15 @@ public abstract class BaseIconCache {
             } else {
                 values.put(IconDB.COLUMN_MONO_ICON, (byte[]) null);
             }
+            values.put(IconDB.COLUMN_EXTENDED_DATA, extendedData);
         } else {
             values.put(IconDB.COLUMN_ICON, (byte[]) null);
             values.put(IconDB.COLUMN_MONO_ICON, (byte[]) null);
+            values.put(IconDB.COLUMN_EXTENDED_DATA, (byte[]) null);
         }
         values.put(IconDB.COLUMN_ICON_COLOR, bitmapInfo.color);
-        values.put(IconDB.COLUMN_FLAGS, bitmapInfo.flags);
+        values.put(IconDB.COLUMN_ICON_PALETTE, flattenPalette(bitmapInfo.getPalette()));
+        values.put(IconDB.COLUMN_FLAGS, bitmapInfo.getFlags());
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, getIconSystemState(packageName));
@@ -752,6 +1389,29 @@ public abstract class BaseIconCache {
         return values;
     }
 
+    /**
+     * Serializes the palette as a sequence of 4 byte colors
+     */
+    @Nullable
+    private static byte[] flattenPalette(@Nullable final int[] palette) {
+        if (palette == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(palette.length * Integer.BYTES);
+        buffer.asIntBuffer().put(palette);
+        return buffer.array();
+    }
+
+    @Nullable
+    private static int[] unflattenPalette(@Nullable final byte[] data) {
+        if (data == null || data.length == 0 || data.length % Integer.BYTES != 0) {
+            return null;
+        }
+        int[] palette = new int[data.length / Integer.BYTES];
+        ByteBuffer.wrap(data).asIntBuffer().get(palette);
+        return palette;
+    }
+
     private void assertWorkerThread() {
         if (Looper.myLooper() != mBgLooper) {
             throw new IllegalStateException("Cache accessed on wrong thread " + Looper.myLooper());
@@ -46,6 +46,16 @@ public interface CachingLogic<T> {
     @NonNull
     BitmapInfo loadIcon(@NonNull final Context context, @NonNull final T object);
 
+    /**
+     * Loads the icon that the object will have after the next day change, or returns null if
+     * the icon does not change with the day. For activities, this can be implemented with
+     * {@link com.android.launcher3.icons.BaseIconFactory#createNextDayIconBitmap}.
+     */
+    @Nullable
+    default BitmapInfo loadNextDayIcon(@NonNull final Context context, @NonNull final T object) {
+        return null;
+    }
+
     /**
      * Provides a option list of keywords to associate with this object
      */
@@ -141,6 +141,11 @@ public class IconCacheUpdateHandler {
         }
         long userSerial = mIconCache.getSerialNumberForUser(user);
 
+        // Icons which change with the day are rendered ahead of every day change
+        for (T app : componentMap.values()) {
+            mIconCache.scheduleNextDayIcon(app, cachingLogic, userSerial);
+        }
+
         Stack<T> appsToUpdate = new Stack<>();
 
         try (Cursor c = mIconCache.mIconDb.query(
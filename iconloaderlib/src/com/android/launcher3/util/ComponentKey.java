@@ -22,8 +22,6 @@ import android.os.UserHandle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
-
 public class ComponentKey {
 
     public final ComponentName componentName;
@@ -37,8 +35,15 @@ public class ComponentKey {
         }
         this.componentName = componentName;
         this.user = user;
-        mHashCode = Arrays.hashCode(new Object[] {componentName, user});
+        mHashCode = hashCode(componentName, user);
+    }
 
+    /**
+     * Same as {@link java.util.Arrays#hashCode(Object[])} for the two values, without allocating
+     * an array.
+     */
+    private static int hashCode(ComponentName componentName, UserHandle user) {
+        return 31 * (31 + componentName.hashCode()) + user.hashCode();
     }
 
     @Override
@@ -60,6 +65,43 @@ public class ComponentKey {
         return componentName.flattenToString() + "#" + user.hashCode();
     }
 
+    /**
+     * Mutable key which can be used instead of a {@link ComponentKey} for looking up hash based
+     * collections of ComponentKeys, without allocating a new key for every lookup. It must only
+     * be used for lookups, and never be stored in the collection.
+     */
+    public static final class Probe {
+
+        private ComponentName mComponentName;
+        private UserHandle mUser;
+        private int mHashCode;
+
+        /**
+         * Updates the probe to match the provided component and returns itself
+         */
+        @NonNull
+        public Probe set(@NonNull ComponentName componentName, @NonNull UserHandle user) {
+            mComponentName = componentName;
+            mUser = user;
+            mHashCode = ComponentKey.hashCode(componentName, user);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ComponentKey)) {
+                return false;
+            }
+            ComponentKey other = (ComponentKey) o;
+            return other.componentName.equals(mComponentName) && other.user.equals(mUser);
+        }
+    }
+
     /**
      * Parses and returns ComponentKey objected from string representation
      * Returns null if string is not properly formatted
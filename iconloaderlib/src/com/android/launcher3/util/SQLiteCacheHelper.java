@@ -66,6 +66,25 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * @see SQLiteDatabase#update(String, ContentValues, String, String[])
+     * @return the number of rows updated
+     */
+    public int update(ContentValues values, String whereClause, String[] whereArgs) {
+        if (mIgnoreWrites) {
+            return 0;
+        }
+        try {
+            return mOpenHelper.getWritableDatabase().update(
+                    mTableName, values, whereClause, whereArgs);
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        }
+        return 0;
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
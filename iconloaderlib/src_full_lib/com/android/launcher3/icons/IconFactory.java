@@ -18,72 +18,149 @@ package com.android.launcher3.icons;
 
 import android.content.Context;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Wrapper class to provide access to {@link BaseIconFactory} and also to provide pool of this class
- * that are threadsafe.
+ * that are threadsafe. Factories are pooled separately for every density and bitmap size.
  */
 public class IconFactory extends BaseIconFactory {
 
-    private static final Object sPoolSync = new Object();
-    private static IconFactory sPool;
-    private static int sPoolId = 0;
+    // Maximum number of idle factories kept for every configuration
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final ConcurrentHashMap<Long, Pool> sPools = new ConcurrentHashMap<>();
+    private static final AtomicInteger sPoolId = new AtomicInteger();
+
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+    private static final AtomicInteger sLiveCount = new AtomicInteger();
 
     /**
      * Return a new Message instance from the global pool. Allows us to
      * avoid allocating new objects in many cases.
      */
     public static IconFactory obtain(Context context) {
-        int poolId;
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                IconFactory m = sPool;
-                sPool = m.next;
-                m.next = null;
-                return m;
+        return obtain(context,
+                context.getResources().getConfiguration().densityDpi,
+                context.getResources().getDimensionPixelSize(R.dimen.default_icon_bitmap_size));
+    }
+
+    /**
+     * Returns a factory for the provided density and bitmap size from the pool, or creates a new
+     * one if none is available.
+     */
+    public static IconFactory obtain(Context context, int fillResIconDpi, int iconBitmapSize) {
+        int poolId = sPoolId.get();
+        long poolKey = getPoolKey(fillResIconDpi, iconBitmapSize);
+        Pool pool = sPools.get(poolKey);
+        if (pool != null) {
+            IconFactory factory;
+            while ((factory = pool.poll()) != null) {
+                if (factory.mPoolId == poolId) {
+                    sHitCount.incrementAndGet();
+                    return factory;
+                }
+                // Recycled concurrently with clearPool
+                sLiveCount.decrementAndGet();
             }
-            poolId = sPoolId;
         }
-
-        return new IconFactory(context,
-                context.getResources().getConfiguration().densityDpi,
-                context.getResources().getDimensionPixelSize(R.dimen.default_icon_bitmap_size),
-                poolId);
+        sMissCount.incrementAndGet();
+        sLiveCount.incrementAndGet();
+        return new IconFactory(context, fillResIconDpi, iconBitmapSize, poolId, poolKey);
     }
 
     public static void clearPool() {
-        synchronized (sPoolSync) {
-            sPool = null;
-            sPoolId++;
+        sPoolId.incrementAndGet();
+        for (Pool pool : sPools.values()) {
+            while (pool.poll() != null) {
+                sLiveCount.decrementAndGet();
+            }
         }
     }
 
-    private final int mPoolId;
+    /**
+     * Returns the number of times {@link #obtain} returned a pooled factory
+     */
+    public static long getPoolHitCount() {
+        return sHitCount.get();
+    }
 
-    private IconFactory next;
+    /**
+     * Returns the number of times {@link #obtain} had to create a new factory
+     */
+    public static long getPoolMissCount() {
+        return sMissCount.get();
+    }
 
-    private IconFactory(Context context, int fillResIconDpi, int iconBitmapSize, int poolId) {
+    /**
+     * Returns the number of factories currently in use or in the pool
+     */
+    public static int getLiveFactoryCount() {
+        return sLiveCount.get();
+    }
+
+    private static long getPoolKey(int fillResIconDpi, int iconBitmapSize) {
+        return ((long) fillResIconDpi << 32) | (iconBitmapSize & 0xFFFFFFFFL);
+    }
+
+    private final int mPoolId;
+    private final long mPoolKey;
+
+    private IconFactory(Context context, int fillResIconDpi, int iconBitmapSize, int poolId,
+            long poolKey) {
         super(context, fillResIconDpi, iconBitmapSize);
         mPoolId = poolId;
+        mPoolKey = poolKey;
     }
 
     /**
      * Recycles a LauncherIcons that may be in-use.
      */
     public void recycle() {
-        synchronized (sPoolSync) {
-            if (sPoolId != mPoolId) {
-                return;
-            }
+        if (sPoolId.get() == mPoolId) {
             // Clear any temporary state variables
             clear();
 
-            next = sPool;
-            sPool = this;
+            if (sPools.computeIfAbsent(mPoolKey, k -> new Pool()).offer(this)) {
+                return;
+            }
         }
+        sLiveCount.decrementAndGet();
     }
 
     @Override
     public void close() {
         recycle();
     }
+
+    /**
+     * Bounded lock-free stack of idle factories for a single configuration
+     */
+    private static final class Pool {
+
+        private final ConcurrentLinkedDeque<IconFactory> mFactories =
+                new ConcurrentLinkedDeque<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+
+        IconFactory poll() {
+            IconFactory factory = mFactories.pollFirst();
+            if (factory != null) {
+                mSize.decrementAndGet();
+            }
+            return factory;
+        }
+
+        boolean offer(IconFactory factory) {
+            if (mSize.incrementAndGet() > MAX_POOL_SIZE) {
+                mSize.decrementAndGet();
+                return false;
+            }
+            mFactories.offerFirst(factory);
+            return true;
+        }
+    }
 }